@@ -0,0 +1,151 @@
+package com.dabloons.wattsapp;
+
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightState;
+import com.dabloons.wattsapp.model.integration.PhillipsHueBridgeSnapshot;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import util.StreamingJsonDecoder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the streaming decoders against sample bridge responses, and compares them with reading
+ * the body as a String and parsing it to a Gson tree. The tree path is measured without mapping
+ * the tree to models, so its numbers are a lower bound for the old decoding path.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JsonDecodingBenchmarkTest {
+
+    private static final String LOG_TAG = "JsonDecodingBenchmark";
+
+    private static final String BYTES_ALLOCATED_STAT = "art.gc.bytes-allocated";
+
+    private static final int ITERATIONS = 500;
+
+    private static final String PHILLIPS_HUE_CONFIGURATION = "{"
+            + "\"lights\":{"
+            + "\"1\":{\"name\":\"Lamp\",\"type\":\"Extended color light\",\"state\":{\"on\":true,\"bri\":254,\"hue\":32767,\"sat\":127,\"reachable\":true}},"
+            + "\"2\":{\"name\":\"Hallway\",\"type\":\"Dimmable light\",\"state\":{\"on\":false,\"bri\":127,\"reachable\":true}},"
+            + "\"3\":{\"name\":\"Porch\",\"state\":{\"on\":false,\"bri\":0,\"reachable\":false}}},"
+            + "\"groups\":{\"1\":{\"name\":\"Living Room\",\"lights\":[\"1\",\"2\"],\"state\":{\"any_on\":true,\"all_on\":false}}},"
+            + "\"scenes\":{\"abc\":{\"name\":\"Relax\",\"lights\":[\"1\"],\"recycle\":false}},"
+            + "\"config\":{\"name\":\"Bridge\",\"apiversion\":\"1.50.0\",\"whitelist\":{}},"
+            + "\"capabilities\":{\"lights\":{\"available\":60}}}";
+
+    private static final String NANOLEAF_STATE = "{"
+            + "\"on\":{\"value\":true},"
+            + "\"brightness\":{\"value\":50,\"max\":100,\"min\":0},"
+            + "\"hue\":{\"value\":180,\"max\":360,\"min\":0},"
+            + "\"sat\":{\"value\":25,\"max\":100,\"min\":0},"
+            + "\"ct\":{\"value\":4000,\"max\":100,\"min\":0},"
+            + "\"colorMode\":\"hs\"}";
+
+    private interface Decoder {
+        void decode(Buffer body) throws IOException;
+    }
+
+    @Test
+    public void decodesPhillipsHueConfiguration() throws IOException {
+        PhillipsHueBridgeSnapshot snapshot = StreamingJsonDecoder.decodePhillipsHueConfiguration(
+                new Buffer().writeUtf8(PHILLIPS_HUE_CONFIGURATION), "user", 65535, 254, 254);
+
+        assertEquals(2, snapshot.getLights().size());
+        assertTrue(snapshot.getUnreachableLightIds().contains("3"));
+
+        Light lamp = snapshot.getLights().get(0);
+        assertEquals("Lamp", lamp.getName());
+        assertTrue(lamp.getLightState().isOn());
+        assertEquals(1f, lamp.getLightState().getBrightness(), 0.001f);
+        assertEquals(0.5f, lamp.getLightState().getHue(), 0.001f);
+        assertEquals(0.5f, lamp.getLightState().getSaturation(), 0.001f);
+
+        // no color support, hue and saturation stay unset
+        Light hallway = snapshot.getLights().get(1);
+        assertNull(hallway.getLightState().getHue());
+        assertNull(hallway.getLightState().getSaturation());
+
+        assertEquals(1, snapshot.getGroups().size());
+        assertEquals(1, snapshot.getScenes().size());
+        assertEquals("Bridge", snapshot.getBridgeName());
+        assertEquals("1.50.0", snapshot.getApiVersion());
+        assertNotNull(snapshot.getCapabilities());
+    }
+
+    @Test
+    public void decodesNanoleafLightState() throws IOException {
+        LightState state = StreamingJsonDecoder.decodeNanoleafLightState(
+                new Buffer().writeUtf8(NANOLEAF_STATE), 360, 100, 100);
+
+        assertTrue(state.isOn());
+        assertEquals(0.5f, state.getBrightness(), 0.001f);
+        assertEquals(0.5f, state.getHue(), 0.001f);
+        assertEquals(0.25f, state.getSaturation(), 0.001f);
+    }
+
+    @Test
+    public void decodesPhillipsHueErrors() throws IOException {
+        String failed = "[{\"success\":{\"/groups/1/action/on\":true}},"
+                + "{\"error\":{\"type\":7,\"address\":\"/groups/1/action/scene\",\"description\":\"invalid value, abc, for parameter, scene\"}}]";
+        assertEquals("invalid value, abc, for parameter, scene",
+                StreamingJsonDecoder.decodePhillipsHueError(new Buffer().writeUtf8(failed)));
+
+        String succeeded = "[{\"success\":{\"/groups/1/action/scene\":\"abc\"}}]";
+        assertNull(StreamingJsonDecoder.decodePhillipsHueError(new Buffer().writeUtf8(succeeded)));
+    }
+
+    @Test
+    public void benchmarkPhillipsHueConfiguration() throws IOException {
+        run(PHILLIPS_HUE_CONFIGURATION, buffer ->
+                StreamingJsonDecoder.decodePhillipsHueConfiguration(buffer, "benchmark", 65535, 254, 254));
+    }
+
+    @Test
+    public void benchmarkNanoleafLightState() throws IOException {
+        run(NANOLEAF_STATE, buffer ->
+                StreamingJsonDecoder.decodeNanoleafLightState(buffer, 360, 100, 100));
+    }
+
+    private void run(String body, Decoder streamingDecoder) throws IOException {
+        Decoder treeDecoder = buffer -> JsonParser.parseString(buffer.readUtf8());
+
+        // warm up both paths so the first measured run is not paying for class loading and JIT
+        measure("warmup", body, ITERATIONS / 10, treeDecoder);
+        measure("warmup", body, ITERATIONS / 10, streamingDecoder);
+
+        Log.i(LOG_TAG, measure("string + tree", body, ITERATIONS, treeDecoder));
+        Log.i(LOG_TAG, measure("streaming", body, ITERATIONS, streamingDecoder));
+    }
+
+    private String measure(String name, String body, int iterations, Decoder decoder) throws IOException {
+        // fill the buffers up front so copying the body is not counted against the decoder
+        Buffer[] buffers = new Buffer[iterations];
+        for(int i = 0; i < iterations; i++)
+            buffers[i] = new Buffer().writeUtf8(body);
+
+        long allocatedBefore = getBytesAllocated();
+        long start = System.nanoTime();
+        for(Buffer buffer : buffers)
+            decoder.decode(buffer);
+        long elapsed = System.nanoTime() - start;
+        long allocated = getBytesAllocated() - allocatedBefore;
+
+        return String.format("%s: %dus/op, %d bytes/op", name, elapsed / iterations / 1000, allocated / iterations);
+    }
+
+    private static long getBytesAllocated() {
+        String stat = Debug.getRuntimeStat(BYTES_ALLOCATED_STAT);
+        return stat == null ? 0 : Long.parseLong(stat);
+    }
+}
@@ -5,6 +5,8 @@ import android.content.Context;
 
 import androidx.appcompat.app.AppCompatDelegate;
 
+import com.dabloons.wattsapp.manager.LightManager;
+
 public class WattsApplication extends Application {
 
     private static Context context;
@@ -14,6 +16,15 @@ public class WattsApplication extends Application {
         WattsApplication.context = getApplicationContext();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // UI is no longer visible, don't leave light state writes waiting on the buffer
+        if(level >= TRIM_MEMORY_UI_HIDDEN)
+            LightManager.getInstance().flushPendingLightStates();
+    }
+
     public static Context getAppContext() {
         return WattsApplication.context;
     }
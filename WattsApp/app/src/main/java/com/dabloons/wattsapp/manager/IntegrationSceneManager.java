@@ -5,6 +5,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.model.Light;
 import com.dabloons.wattsapp.model.integration.IntegrationAuth;
@@ -14,22 +15,24 @@ import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
 import com.dabloons.wattsapp.repository.IntegrationSceneRepository;
 import com.dabloons.wattsapp.service.NanoleafService;
-import com.dabloons.wattsapp.service.PhillipsHueService;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
+import util.FutureUtil;
+import util.HostConcurrencyLimiter;
+import util.StreamingJsonDecoder;
 import util.UIMessageUtil;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
@@ -42,15 +45,19 @@ public class IntegrationSceneManager {
 
     private IntegrationSceneRepository integrationSceneRepository;
     private LightManager lightManager;
-    private PhillipsHueService phillipsHueService;
     private NanoleafService nanoleafService;
 
     private UserManager userManager = UserManager.getInstance();
 
+    private final HostConcurrencyLimiter nanoleafHostLimiter = new HostConcurrencyLimiter(
+            Integer.parseInt(WattsApplication.getResourceString(R.string.nanoleaf_max_requests_per_host)));
+
+    // hash of each panel's effect list as last stored, keyed by the panel's light integration id
+    private final Map<String, Integer> nanoleafEffectHashes = new ConcurrentHashMap<>();
+
     private IntegrationSceneManager() {
         integrationSceneRepository = IntegrationSceneRepository.getInstance();
         lightManager = LightManager.getInstance();
-        phillipsHueService = PhillipsHueService.getInstance();
         nanoleafService = NanoleafService.getInstance();
     }
 
@@ -71,7 +78,7 @@ public class IntegrationSceneManager {
 
 
     public void getIntegrationScenesMap(List<IntegrationType> integrations, WattsCallback<Map<IntegrationAuth, List<IntegrationScene>>> callback) {
-        buildIntegrationSceneMap(integrations, 0, new HashMap<>(), callback);
+        buildIntegrationSceneMap(integrations, callback);
     }
 
     public void syncNanoleafEffectsToDatabase(WattsCallback<Void> callback) {
@@ -84,19 +91,20 @@ public class IntegrationSceneManager {
 
             lightManager.getLightsForIntegration(IntegrationType.NANOLEAF, (lights, status12) -> {
                 if(!status12.success) {
-                    Log.e(LOG_TAG, status.message);
-                    callback.apply(null, new WattsCallbackStatus(status.message));
+                    Log.e(LOG_TAG, status12.message);
+                    callback.apply(null, new WattsCallbackStatus(status12.message));
                     return;
                 }
 
-                getAndStoreEffectsForEachLight(lights, new ArrayList<>(), 0, (integrationScenes, status1) -> {
-                    integrationSceneRepository.storeMultipleIntegrationScenes(removeDuplicateIntegrationScenes(existingScenes, integrationScenes))
-                        .addOnCompleteListener(task -> {
-                            callback.apply(null);
-                        })
-                        .addOnFailureListener(task -> {
-                            callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-                        });
+                userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status2) -> {
+                    if(!status2.success || auth == null) {
+                        Log.e(LOG_TAG, status2.message);
+                        callback.apply(null, new WattsCallbackStatus(status2.message));
+                        return;
+                    }
+
+                    harvestNanoleafEffects((NanoleafPanelAuthCollection) auth, lights, effectsByLight ->
+                            storeChangedNanoleafEffects(existingScenes, effectsByLight, callback));
                 });
             });
         });
@@ -126,50 +134,50 @@ public class IntegrationSceneManager {
 
 
 
-    private void buildIntegrationSceneMap(List<IntegrationType> integrations, int index,
-                                          Map<IntegrationAuth, List<IntegrationScene>> map,
+    /**
+     * Load the scenes and credentials of every integration concurrently and group the scenes by
+     * the auth they are activated with
+     */
+    private void buildIntegrationSceneMap(List<IntegrationType> integrations,
                                           WattsCallback<Map<IntegrationAuth, List<IntegrationScene>>> callback) {
-        if(index >= integrations.size()) {
-            callback.apply(map);
-            return;
+        List<CompletableFuture<List<IntegrationScene>>> sceneLoads = new ArrayList<>();
+        List<CompletableFuture<IntegrationAuth>> authLoads = new ArrayList<>();
+        for(IntegrationType type : integrations) {
+            sceneLoads.add(FutureUtil.<List<IntegrationScene>>fromCallback(cb -> getIntegrationScenes(type, cb)));
+            authLoads.add(FutureUtil.<IntegrationAuth>fromCallback(cb -> userManager.getIntegrationAuthData(type, cb)));
         }
 
-        IntegrationType type = integrations.get(index);
-        getIntegrationScenes(type, (scenes, status) -> {
-            if(!status.success) {
-                callback.apply(null, new WattsCallbackStatus(status.message));
-                return;
-            }
-
-            userManager.getIntegrationAuthData(type, (auth, status1) -> {
-                if(!status1.success) {
-                    callback.apply(null, new WattsCallbackStatus(status1.message));
-                    return;
-                }
-
-                switch (type) {
+        CompletableFuture<List<List<IntegrationScene>>> scenes = FutureUtil.allOf(sceneLoads);
+        CompletableFuture<List<IntegrationAuth>> auths = FutureUtil.allOf(authLoads);
+        CompletableFuture<Map<IntegrationAuth, List<IntegrationScene>>> map = scenes.thenCombine(auths, (sceneLists, authList) -> {
+            Map<IntegrationAuth, List<IntegrationScene>> ret = new LinkedHashMap<>();
+            for(int i = 0; i < integrations.size(); i++) {
+                IntegrationAuth auth = authList.get(i);
+                List<IntegrationScene> integrationScenes = sceneLists.get(i);
+                switch(integrations.get(i)) {
                     case PHILLIPS_HUE:
-                        map.put(auth, scenes);
+                        ret.put(auth, integrationScenes);
                         break;
                     case NANOLEAF:
+                        Map<String, List<IntegrationScene>> scenesByPanel = getScenesByParentLightId(integrationScenes);
                         NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth;
                         for(NanoleafPanelIntegrationAuth panel : collection.getPanelAuths()) {
-                            map.put(panel, getNanoleafPanelScenes(panel, scenes));
+                            ret.put(panel, scenesByPanel.getOrDefault(panel.getUid(), new ArrayList<>()));
                         }
                         break;
                 }
-
-                int nextIndex = index + 1;
-                buildIntegrationSceneMap(integrations, nextIndex, map, callback);
-            });
+            }
+            return ret;
         });
+
+        FutureUtil.toCallback(map, callback);
     }
 
-    private List<IntegrationScene> getNanoleafPanelScenes(NanoleafPanelIntegrationAuth panel, List<IntegrationScene> scenes) {
-        List<IntegrationScene> ret = new ArrayList<>();
+    private Map<String, List<IntegrationScene>> getScenesByParentLightId(List<IntegrationScene> scenes) {
+        Map<String, List<IntegrationScene>> ret = new HashMap<>();
         for(IntegrationScene scene : scenes) {
-            if(scene.getParentLightId().equals(panel.getUid()))
-                ret.add(scene);
+            if(scene.getParentLightId() != null)
+                ret.computeIfAbsent(scene.getParentLightId(), key -> new ArrayList<>()).add(scene);
         }
         return ret;
     }
@@ -188,6 +196,21 @@ public class IntegrationSceneManager {
     }
 
     private void syncPhillipsHueIntegrationSceneToDatabase(WattsCallback<Void> callback) {
+        // scenes are synced as part of the full bridge sync, which also covers lights
+        PhillipsHueSyncManager.getInstance().sync((snapshot, status) -> {
+            if(!status.success) {
+                callback.apply(null, status);
+                return;
+            }
+
+            callback.apply(null);
+        });
+    }
+
+    /**
+     * Store the scenes read from the bridge that are not stored yet
+     */
+    public void syncPhillipsHueScenes(List<IntegrationScene> integrationScenes, WattsCallback<Void> callback) {
         integrationSceneRepository.getAllIntegrationScenes(IntegrationType.PHILLIPS_HUE, (existingScenes, status) -> {
             if(!status.success) {
                 String message = "Failed to get existing scenes when syncing phillips hue scenes";
@@ -196,77 +219,130 @@ public class IntegrationSceneManager {
                 return;
             }
 
-            phillipsHueService.getAllScenes(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    String message = "Failed to retrieve phillips hue scenes during sync";
-                    Log.e(LOG_TAG, message);
-                    callback.apply(null, new WattsCallbackStatus(message));
-                }
-
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                    String responseData = response.body().string();
-                    JsonObject responseObject = (JsonObject) JsonParser.parseString(responseData);
-                    List<IntegrationScene> integrationScenes = getPhillipsHueScenesFromResponse(responseObject);
-                    integrationSceneRepository.storeMultipleIntegrationScenes(removeDuplicateIntegrationScenes(existingScenes, integrationScenes)).addOnCompleteListener(val -> {
+            integrationSceneRepository.storeMultipleIntegrationScenes(removeDuplicateIntegrationScenes(existingScenes, integrationScenes))
+                .addOnCompleteListener(task -> {
+                    if(task.isSuccessful())
                         callback.apply(null);
-                    });
-                }
-            });
+                    else
+                        callback.apply(null, new WattsCallbackStatus(task.getException().getMessage()));
+                });
         });
     }
 
-    private List<IntegrationScene> getPhillipsHueScenesFromResponse(JsonObject responseObject) {
-        String userId = UserManager.getInstance().getCurrentUser().getUid();
-        List<IntegrationScene> ret = new ArrayList<>();
-        for(String key : responseObject.keySet()) {
-            JsonObject obj = responseObject.get(key).getAsJsonObject();
-            String integrationId = key;
-            String name = obj.get("name").getAsString();
-            JsonArray lightIds = obj.get("lights").getAsJsonArray();
-            List<String> lightIdsRet = new ArrayList<>();
-            Iterator<JsonElement> idIt = lightIds.iterator();
-            while(idIt.hasNext()) {
-                lightIdsRet.add(idIt.next().getAsString());
-            }
-            IntegrationScene is = new IntegrationScene(userId, IntegrationType.PHILLIPS_HUE, name, integrationId, lightIdsRet, null);
-            ret.add(is);
+    /**
+     * Fetch the effect list of every panel concurrently, limited per host. Panels that fail to
+     * answer are left out of the result.
+     */
+    private void harvestNanoleafEffects(NanoleafPanelAuthCollection collection, List<Light> lights,
+                                        Consumer<Map<Light, List<String>>> onHarvested) {
+        Map<Light, CompletableFuture<List<String>>> harvests = new LinkedHashMap<>();
+        for(Light light : lights) {
+            NanoleafPanelIntegrationAuth panel = collection.findNanoleafPanelAuthForLight(light);
+            if(panel == null)
+                continue;
+
+            CompletableFuture<List<String>> harvest = new CompletableFuture<>();
+            harvests.put(light, harvest);
+            nanoleafHostLimiter.submit(panel.getEndpoint().getBaseUrl(), onDone ->
+                nanoleafService.getEffectsForLight(panel, new Callback() {
+                    @Override
+                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                        Log.w(LOG_TAG, "Failed to get effects for " + light.getName() + ": " + e.getMessage());
+                        harvest.complete(null);
+                        onDone.run();
+                    }
+
+                    @Override
+                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                        try {
+                            if(response.isSuccessful())
+                                harvest.complete(StreamingJsonDecoder.decodeStringArray(response.body().source()));
+                            else
+                                Log.w(LOG_TAG, "Failed to get effects for " + light.getName() + ": " + response.message());
+                        } catch(IOException | RuntimeException e) {
+                            Log.w(LOG_TAG, "Failed to read effects for " + light.getName() + ": " + e.getMessage());
+                        } finally {
+                            response.close();
+                            harvest.complete(null);
+                            onDone.run();
+                        }
+                    }
+                }));
         }
-        return ret;
+
+        CompletableFuture.allOf(harvests.values().toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            Map<Light, List<String>> ret = new LinkedHashMap<>();
+            for(Map.Entry<Light, CompletableFuture<List<String>>> entry : harvests.entrySet()) {
+                List<String> effects = entry.getValue().join();
+                if(effects != null)
+                    ret.put(entry.getKey(), effects);
+            }
+            onHarvested.accept(ret);
+        });
     }
 
-    private void getAndStoreEffectsForEachLight(List<Light> lights, List<IntegrationScene> scenes, int index, WattsCallback<List<IntegrationScene>> callback) {
-        if(index >= lights.size()) {
-            callback.apply(scenes);
+    private void storeChangedNanoleafEffects(List<IntegrationScene> existingScenes, Map<Light, List<String>> effectsByLight,
+                                             WattsCallback<Void> callback) {
+        Map<String, List<IntegrationScene>> existingByLight = new HashMap<>();
+        for(IntegrationScene scene : existingScenes)
+            existingByLight.computeIfAbsent(scene.getParentLightId(), key -> new ArrayList<>()).add(scene);
+
+        List<IntegrationScene> toStore = new ArrayList<>();
+        Map<String, Integer> harvestedHashes = new HashMap<>();
+        for(Map.Entry<Light, List<String>> entry : effectsByLight.entrySet()) {
+            Light light = entry.getKey();
+            String lightId = light.getIntegrationId();
+            List<IntegrationScene> existingForLight = existingByLight.getOrDefault(lightId, new ArrayList<>());
+
+            int hash = getEffectListHash(entry.getValue());
+            harvestedHashes.put(lightId, hash);
+
+            Integer knownHash = nanoleafEffectHashes.get(lightId);
+            if(knownHash == null)
+                knownHash = getEffectListHash(getSceneIntegrationIds(existingForLight));
+            if(knownHash == hash)
+                continue;
+
+            toStore.addAll(removeDuplicateIntegrationScenes(existingForLight, getNanoleafScenesFromResponse(light, entry.getValue())));
+        }
+
+        Log.d(LOG_TAG, String.format("Nanoleaf effects: %d panels harvested, %d new effects to store",
+                effectsByLight.size(), toStore.size()));
+        if(toStore.isEmpty()) {
+            nanoleafEffectHashes.putAll(harvestedHashes);
+            callback.apply(null);
             return;
         }
 
-        Light light = lights.get(index);
-        nanoleafService.getEffectsForLight(light, new Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                callback.apply(null, new WattsCallbackStatus(e.getMessage()));
+        integrationSceneRepository.storeMultipleIntegrationScenes(toStore).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                callback.apply(null, new WattsCallbackStatus(task.getException().getMessage()));
+                return;
             }
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                String responseData = response.body().string();
-                JsonArray responseArray = JsonParser.parseString(responseData).getAsJsonArray();
-                List<IntegrationScene> integrationScenes = getNanoleafScenesFromResponse(light, responseArray);
-                scenes.addAll(integrationScenes);
-                int newIndex = index + 1;
-                getAndStoreEffectsForEachLight(lights, scenes, newIndex, callback);
-            }
+            nanoleafEffectHashes.putAll(harvestedHashes);
+            callback.apply(null);
         });
     }
 
-    private List<IntegrationScene> getNanoleafScenesFromResponse(Light light, JsonArray responseArray) {
+    private List<String> getSceneIntegrationIds(List<IntegrationScene> scenes) {
+        List<String> ret = new ArrayList<>();
+        for(IntegrationScene scene : scenes)
+            ret.add(scene.getIntegrationId());
+        return ret;
+    }
+
+    // Order independent hash of an effect list, used to skip panels whose effects have not changed
+    private int getEffectListHash(List<String> effects) {
+        List<String> sorted = new ArrayList<>(effects);
+        Collections.sort(sorted);
+        return sorted.hashCode();
+    }
+
+    private List<IntegrationScene> getNanoleafScenesFromResponse(Light light, List<String> effects) {
         String userId = UserManager.getInstance().getCurrentUser().getUid();
         List<IntegrationScene> ret = new ArrayList<>();
-        Iterator<JsonElement> responseIt = responseArray.iterator();
-        while(responseIt.hasNext()) {
-            String effect = responseIt.next().getAsString();
+        for(String effect : effects) {
             List<String> lightIds = new ArrayList<>();
             lightIds.add(light.getIntegrationId());
             IntegrationScene is = new IntegrationScene(userId, IntegrationType.NANOLEAF, effect, effect, lightIds, light.getIntegrationId());
@@ -0,0 +1,178 @@
+package com.dabloons.wattsapp.manager;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import util.WattsCallback;
+import util.WattsCallbackStatus;
+
+/**
+ * Coalesces light state commands so that each light has at most one request in flight.
+ * While a request is outstanding, newer states replace any pending state for that light and
+ * the newest one is sent as soon as the outstanding request finishes.
+ */
+public class LightCommandMailbox {
+
+    private final String LOG_TAG = "LightCommandMailbox";
+
+    @FunctionalInterface
+    public interface LightCommandSender {
+        /**
+         * Send the state to the light. Implementations must invoke the callback exactly once,
+         * unless the send is cancelled first.
+         * @param roomId The room the command was sent from, if any
+         * @return Cancels the send, so a timed out request is not still in flight when the
+         *         light's next state is sent
+         */
+        Runnable send(Light light, LightState state, @Nullable String roomId, WattsCallback<Void> callback);
+    }
+
+    private final LightCommandSender sender;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timeoutExecutor;
+
+    // keyed by light uid, guarded by itself
+    private final Map<String, Mailbox> mailboxes;
+
+    /**
+     * @param timeoutMillis How long a send may go without calling back before it is cancelled and
+     *                      failed, so a sender that never answers can't block the light's later commands
+     */
+    public LightCommandMailbox(LightCommandSender sender, long timeoutMillis) {
+        this.sender = sender;
+        this.timeoutMillis = timeoutMillis;
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.mailboxes = new HashMap<>();
+    }
+
+    public void submit(Light light, LightState state, @Nullable String roomId, WattsCallback<Void> callback) {
+        synchronized(mailboxes) {
+            Mailbox mailbox = mailboxes.get(light.getUid());
+            if(mailbox == null) {
+                mailbox = new Mailbox();
+                mailboxes.put(light.getUid(), mailbox);
+            }
+
+            if(mailbox.inFlight) {
+                // Latest state wins, earlier callers are resolved with the result of the newest send
+                mailbox.pendingLight = light;
+                mailbox.pendingState = state;
+                mailbox.pendingRoomId = roomId;
+                mailbox.pendingCallbacks.add(callback);
+                return;
+            }
+
+            mailbox.inFlight = true;
+        }
+
+        List<WattsCallback<Void>> callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        dispatch(light, state, roomId, callbacks);
+    }
+
+    public int getPendingCount() {
+        synchronized(mailboxes) {
+            int count = 0;
+            for(Mailbox mailbox : mailboxes.values()) {
+                if(mailbox.pendingState != null)
+                    count++;
+            }
+            return count;
+        }
+    }
+
+    private void dispatch(Light light, LightState state, @Nullable String roomId, List<WattsCallback<Void>> callbacks) {
+        // whichever of the response, a synchronous failure or the timeout comes first finishes the send
+        AtomicBoolean finished = new AtomicBoolean(false);
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        AtomicReference<Runnable> cancel = new AtomicReference<>();
+        ScheduledFuture<?> timeout = timeoutExecutor.schedule(() -> {
+            if(!finished.compareAndSet(false, true))
+                return;
+            timedOut.set(true);
+            Log.w(LOG_TAG, "Light state command timed out for " + light.getUid());
+            // the request must be gone before the next one is sent, or the light has two in flight
+            Runnable cancelSend = cancel.get();
+            if(cancelSend != null)
+                cancelSend.run();
+            finishDispatch(light.getUid(), callbacks, new WattsCallbackStatus("Light state command timed out"));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            cancel.set(sender.send(light, state, roomId, (var, status) -> {
+                if(!finished.compareAndSet(false, true))
+                    return;
+                timeout.cancel(false);
+                finishDispatch(light.getUid(), callbacks, status);
+            }));
+            // timed out before the sender returned its cancel, cancelling twice is harmless
+            if(timedOut.get() && cancel.get() != null)
+                cancel.get().run();
+        } catch(Exception e) {
+            Log.e(LOG_TAG, "Failed to send light state: " + e.getMessage());
+            if(!finished.compareAndSet(false, true))
+                return;
+            timeout.cancel(false);
+            finishDispatch(light.getUid(), callbacks, new WattsCallbackStatus(e.getMessage()));
+        }
+    }
+
+    private void finishDispatch(String lightUid, List<WattsCallback<Void>> callbacks, WattsCallbackStatus status) {
+        onRequestFinished(lightUid);
+        for(WattsCallback<Void> callback : callbacks)
+            callback.apply(null, status);
+    }
+
+    private void onRequestFinished(String lightUid) {
+        Light nextLight;
+        LightState nextState;
+        String nextRoomId;
+        List<WattsCallback<Void>> nextCallbacks;
+
+        synchronized(mailboxes) {
+            Mailbox mailbox = mailboxes.get(lightUid);
+            if(mailbox == null)
+                return;
+
+            if(mailbox.pendingState == null) {
+                mailboxes.remove(lightUid);
+                return;
+            }
+
+            nextLight = mailbox.pendingLight;
+            nextState = mailbox.pendingState;
+            nextRoomId = mailbox.pendingRoomId;
+            nextCallbacks = mailbox.pendingCallbacks;
+
+            mailbox.pendingLight = null;
+            mailbox.pendingState = null;
+            mailbox.pendingRoomId = null;
+            mailbox.pendingCallbacks = new ArrayList<>();
+        }
+
+        dispatch(nextLight, nextState, nextRoomId, nextCallbacks);
+    }
+
+    private static class Mailbox {
+        boolean inFlight = false;
+        Light pendingLight;
+        LightState pendingState;
+        String pendingRoomId;
+        List<WattsCallback<Void>> pendingCallbacks = new ArrayList<>();
+    }
+}
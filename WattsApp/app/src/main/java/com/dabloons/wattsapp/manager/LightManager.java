@@ -3,35 +3,42 @@ package com.dabloons.wattsapp.manager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.model.Light;
 import com.dabloons.wattsapp.model.LightState;
+import com.dabloons.wattsapp.model.LightSyncDiff;
 import com.dabloons.wattsapp.model.integration.IntegrationAuth;
 import com.dabloons.wattsapp.model.integration.IntegrationType;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
 import com.dabloons.wattsapp.repository.LightRepository;
+import com.dabloons.wattsapp.service.CancellableCallback;
 import com.dabloons.wattsapp.service.NanoleafService;
 import com.dabloons.wattsapp.service.PhillipsHueService;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
+import util.FutureUtil;
+import util.LightReconciler;
 import util.RepositoryUtil;
+import util.StreamingJsonDecoder;
 import util.UIMessageUtil;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
@@ -46,22 +53,23 @@ public class LightManager {
     private PhillipsHueService phillipsHueService = PhillipsHueService.getInstance();
     private NanoleafService nanoleafService = NanoleafService.getInstance();
 
-    private final int PHILLIPS_HUE_HUE_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_hue_max));
-    private final int PHILLIPS_HUE_SATURATION_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_saturation_max));
-    private final int PHILLIPS_HUE_BRIGHTNESS_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_brightness_max));
+    private final long LIGHT_COMMAND_TIMEOUT_MS = Long.parseLong(WattsApplication.getResourceString(R.string.light_command_timeout_ms));
+
+    private LightCommandMailbox lightCommandMailbox = new LightCommandMailbox(this::sendLightState, LIGHT_COMMAND_TIMEOUT_MS);
 
     private final int NANOLEAF_HUE_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.nanoleaf_hue_max));
     private final int NANOLEAF_SATURATION_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.nanoleaf_saturation_max));
     private final int NANOLEAF_BRIGHTNESS_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.nanoleaf_brightness_max));
+    private final long NANOLEAF_STATE_TIMEOUT_MS = Long.parseLong(WattsApplication.getResourceString(R.string.nanoleaf_state_timeout_ms));
 
-    public void turnOnLight(Light light, WattsCallback<Void> callback) {
+    public void turnOnLight(Light light, @Nullable String roomId, WattsCallback<Void> callback) {
         LightState state = new LightState(true, light.getLightState().getBrightness(), light.getLightState().getHue(), light.getLightState().getSaturation());
-        setLightState(light, state, callback);
+        setLightState(light, state, roomId, callback);
     }
 
-    public void turnOffLight(Light light, WattsCallback<Void> callback) {
+    public void turnOffLight(Light light, @Nullable String roomId, WattsCallback<Void> callback) {
         LightState state = new LightState(false, light.getLightState().getBrightness(), light.getLightState().getHue(), light.getLightState().getSaturation());
-        setLightState(light, state, callback);
+        setLightState(light, state, roomId, callback);
     }
 
     public void deleteLightsForUser(WattsCallback<Void> callback) {
@@ -78,64 +86,63 @@ public class LightManager {
             });
     }
 
-    public void setLightState(Light light, LightState state, WattsCallback<Void> callback) {
+    /**
+     * @param roomId The room the light is being controlled from, so commands are queued fairly across rooms
+     */
+    public void setLightState(Light light, LightState state, @Nullable String roomId, WattsCallback<Void> callback) {
+        lightCommandMailbox.submit(light, state, roomId, callback);
+
+        // persisted through the write buffer so rapid changes to a light cost a single write
+        light.setLightState(state);
+        lightRepository.bufferLightState(light);
+    }
+
+    /**
+     * Send a light state without persisting it, still one request at a time per light
+     */
+    public void sendLightStateCommand(Light light, LightState state, @Nullable String roomId, WattsCallback<Void> callback) {
+        lightCommandMailbox.submit(light, state, roomId, callback);
+    }
+
+    /**
+     * Persist any buffered light states now, e.g. when the app goes to the background
+     */
+    public void flushPendingLightStates() {
+        lightRepository.flushLightStates();
+    }
+
+    private Runnable sendLightState(Light light, LightState state, @Nullable String roomId, WattsCallback<Void> callback) {
         IntegrationType type = light.getIntegrationType();
+        CancellableCallback requestCallback = new CancellableCallback(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Log.e(LOG_TAG, e.getMessage());
+                callback.apply(null, new WattsCallbackStatus(e.getMessage()));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                if(response.isSuccessful())
+                    callback.apply(null, new WattsCallbackStatus(true));
+                else
+                    callback.apply(null, new WattsCallbackStatus(response.message()));
+                response.close();
+            }
+        });
+
         switch(light.getIntegrationType()) {
             case PHILLIPS_HUE:
-                phillipsHueService.setLightState(light, state, new Callback() {
-                    @Override
-                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        Log.e(LOG_TAG, e.getMessage());
-                        callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-                    }
-
-                    @Override
-                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                        if(response.isSuccessful())
-                            callback.apply(null, new WattsCallbackStatus(true));
-                        else
-                            callback.apply(null, new WattsCallbackStatus(response.message()));
-                    }
-                });
+                phillipsHueService.setLightState(light, state, roomId, requestCallback);
                 break;
             case NANOLEAF:
-                nanoleafService.setLightState(light, state, new Callback() {
-                    @Override
-                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        Log.e(LOG_TAG, e.getMessage());
-                        callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-                    }
-
-                    @Override
-                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                        if(response.isSuccessful())
-                            callback.apply(null, new WattsCallbackStatus(true));
-                        else
-                            callback.apply(null, new WattsCallbackStatus(response.message()));
-                    }
-                });
+                nanoleafService.setLightState(light, state, requestCallback);
                 break;
             default:
                 Log.w(LOG_TAG, "There is no light manager for integration type " + type);
+                callback.apply(null, new WattsCallbackStatus("No light manager for integration type " + type));
                 break;
         }
-
-        updateLightStateInDatabase(light, state, (var, status) -> {
-            if(!status.success) {
-                Log.e(LOG_TAG, status.message);
-                UIMessageUtil.showShortToastMessage(WattsApplication.getAppContext(), "Failed to set light state in db");
-            }
-        });
-    }
-
-    private void updateLightStateInDatabase(Light light, LightState state, WattsCallback<Void> callback) {
-        light.setLightState(state);
-        lightRepository.updateLight(light).addOnCompleteListener(task -> {
-            callback.apply(null);
-        })
-        .addOnFailureListener(task -> {
-            callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-        });
+        return requestCallback::cancel;
     }
 
     public void syncLights() {
@@ -165,12 +172,12 @@ public class LightManager {
             }
 
             for(IntegrationType type : integrations) {
-                syncLightsToDatabase(type, callback);
+                syncLightsForIntegration(type, (diff, status) -> callback.apply(null, status));
             }
         });
     }
 
-    public void syncNanoleafLightsToDatabase(NanoleafPanelAuthCollection collection, WattsCallback<Void> callback) {
+    public void syncNanoleafLightsToDatabase(NanoleafPanelAuthCollection collection, WattsCallback<LightSyncDiff> callback) {
         lightRepository.getAllLightsForType(IntegrationType.NANOLEAF, (existingLights, status) -> {
             if(!status.success) {
                 Log.e(LOG_TAG, status.message);
@@ -179,71 +186,83 @@ public class LightManager {
             }
 
             // get nanoleaf panel light state
-            getNanoleafPanelLightStates(collection, (states, status1) -> {
-                if(!status1.success) {
-                    callback.apply(null, new WattsCallbackStatus(status1.message));
-                    return;
+            getNanoleafPanelLightStates(collection, (panelStates, status1) -> {
+                Set<String> existingIds = new HashSet<>();
+                for(Light existing : existingLights)
+                    existingIds.add(existing.getIntegrationId());
+
+                // keep the stored state of panels that could not be reached rather than resetting it
+                Set<String> unreachableIds = new HashSet<>();
+                for(NanoleafPanelIntegrationAuth panel : panelStates.unreachablePanels) {
+                    if(existingIds.contains(panel.getUid()))
+                        unreachableIds.add(panel.getUid());
                 }
 
-                List<Light> lights = RepositoryUtil.createNanoleafLightsFromAuthCollection(collection, states);
-                updateAndCreateLightsInDatabase(lights, existingLights, callback);
+                List<Light> lights = new ArrayList<>();
+                for(Light light : RepositoryUtil.createNanoleafLightsFromAuthCollection(collection, panelStates.states)) {
+                    if(!unreachableIds.contains(light.getIntegrationId()))
+                        lights.add(light);
+                }
+
+                updateAndCreateLightsInDatabase(lights, existingLights, unreachableIds, callback);
             });
         });
     }
 
-    private void getNanoleafPanelLightStates(NanoleafPanelAuthCollection collection, WattsCallback<Map<String, LightState>> callback) {
+    /**
+     * Poll every panel concurrently. Panels that fail or do not answer in time are reported as
+     * unreachable instead of failing the whole poll.
+     */
+    private void getNanoleafPanelLightStates(NanoleafPanelAuthCollection collection, WattsCallback<NanoleafPanelStates> callback) {
         List<NanoleafPanelIntegrationAuth> panels = collection.getPanelAuths();
-        getNanoleafPanelLightState(panels, 0, new HashMap<>(), callback);
-    }
-
-    private void getNanoleafPanelLightState(List<NanoleafPanelIntegrationAuth> panels, int index,
-                                            Map<String, LightState> states, WattsCallback<Map<String, LightState>> callback) {
-        if(index >= panels.size()) {
-            callback.apply(states);
-            return;
+        List<CompletableFuture<LightState>> polls = new ArrayList<>();
+        for(NanoleafPanelIntegrationAuth panel : panels) {
+            CompletableFuture<LightState> poll = FutureUtil.withTimeout(
+                    FutureUtil.<LightState>fromCallback(cb -> getNanoleafPanelLightState(panel, cb)),
+                    NANOLEAF_STATE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            polls.add(poll.handle((state, throwable) -> {
+                if(throwable != null)
+                    Log.w(LOG_TAG, "Nanoleaf panel " + panel.getName() + " unreachable: " + FutureUtil.getMessage(throwable));
+                return throwable == null ? state : null;
+            }));
         }
 
-        NanoleafPanelIntegrationAuth panel = panels.get(index);
+        FutureUtil.allOf(polls).thenAccept(states -> {
+            NanoleafPanelStates ret = new NanoleafPanelStates();
+            for(int i = 0; i < panels.size(); i++) {
+                NanoleafPanelIntegrationAuth panel = panels.get(i);
+                LightState state = states.get(i);
+                if(state != null)
+                    ret.states.put(panel.getName(), state);
+                else
+                    ret.unreachablePanels.add(panel);
+            }
+            callback.apply(ret);
+        });
+    }
+
+    private void getNanoleafPanelLightState(NanoleafPanelIntegrationAuth panel, WattsCallback<LightState> callback) {
         nanoleafService.getLightState(panel, new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                Log.e(LOG_TAG, e.getMessage());
                 callback.apply(null, new WattsCallbackStatus(e.getMessage()));
             }
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
                 if(!response.isSuccessful()) {
-                    Log.e(LOG_TAG, response.message());
                     callback.apply(null, new WattsCallbackStatus(response.message()));
                     return;
                 }
 
-                String responseBody = response.body().string();
-                LightState state = getNanoleafPanelLightStateFromResponse(responseBody);
-                states.put(panel.getName(), state);
-                int nextIndex = index + 1;
-                getNanoleafPanelLightState(panels, nextIndex, states, callback);
+                LightState state = StreamingJsonDecoder.decodeNanoleafLightState(response.body().source(),
+                        NANOLEAF_HUE_MAX, NANOLEAF_SATURATION_MAX, NANOLEAF_BRIGHTNESS_MAX);
+                callback.apply(state);
             }
         });
     }
 
-    private LightState getNanoleafPanelLightStateFromResponse(String response) {
-        JsonObject bodyObj = JsonParser.parseString(response).getAsJsonObject();
-
-        boolean on = bodyObj.get("on").getAsJsonObject().get("value").getAsBoolean();
-        float hue = bodyObj.get("hue").getAsJsonObject().get("value").getAsFloat();
-        float saturation = bodyObj.get("sat").getAsJsonObject().get("value").getAsFloat();
-        float brightness = bodyObj.get("brightness").getAsJsonObject().get("value").getAsFloat();
-
-        hue /= NANOLEAF_HUE_MAX;
-        saturation /= NANOLEAF_SATURATION_MAX;
-        brightness /= NANOLEAF_BRIGHTNESS_MAX;
-
-        LightState state = new LightState(on, brightness, hue, saturation);
-        return state;
-    }
-
     public void getLights(WattsCallback<List<Light>> callback)
     {
         lightRepository.getAllLights(callback);
@@ -257,10 +276,10 @@ public class LightManager {
         lightRepository.getLightsForIds(lightIds, callback);
     }
 
-    /*
-        HELPERS
+    /**
+     * Sync the lights of a single integration with the devices
      */
-    private void syncLightsToDatabase(IntegrationType type, WattsCallback<Void> callback) {
+    public void syncLightsForIntegration(IntegrationType type, WattsCallback<LightSyncDiff> callback) {
         switch(type) {
             case PHILLIPS_HUE:
                 syncPhillipsHueLightsToDatabase(callback);
@@ -270,10 +289,30 @@ public class LightManager {
                 break;
             default:
                 Log.w(LOG_TAG, "Cannot sync lights of type " + type);
+                callback.apply(null, new WattsCallbackStatus("Cannot sync lights of type " + type));
         }
     }
 
-    private void syncPhillipsHueLightsToDatabase(WattsCallback<Void> callback) {
+    /*
+        HELPERS
+     */
+    private void syncPhillipsHueLightsToDatabase(WattsCallback<LightSyncDiff> callback) {
+        // lights are synced as part of the full bridge sync, which also covers scenes
+        PhillipsHueSyncManager.getInstance().sync((snapshot, status) -> {
+            if(!status.success) {
+                callback.apply(null, status);
+                return;
+            }
+
+            callback.apply(snapshot.getLightSyncDiff());
+        });
+    }
+
+    /**
+     * Reconcile the lights read from the bridge with the stored Phillips Hue lights
+     * @param unreachableIds Lights the bridge knows about but cannot reach, these are kept as is
+     */
+    public void syncPhillipsHueLights(List<Light> lights, Set<String> unreachableIds, WattsCallback<LightSyncDiff> callback) {
         lightRepository.getAllLightsForType(IntegrationType.PHILLIPS_HUE, (existingLights, status) -> {
             if(!status.success) {
                 String message = "Failed to get existing lights when syncing phillips hue lights";
@@ -282,34 +321,16 @@ public class LightManager {
                 return;
             }
 
-            phillipsHueService.getAllLights(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    String message = "Failed to retrieve phillips hue lights during sync";
-                    Log.e(LOG_TAG, message);
-                    callback.apply(null, new WattsCallbackStatus(message));
-                }
-
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                    String responseData = response.body().string();
-                    try {
-                        JsonObject responseObject = JsonParser.parseString(responseData).getAsJsonObject();
-                        List<Light> lights = getPhillipsHueLightsFromResponse(responseObject);
-                        updateAndCreateLightsInDatabase(lights, existingLights, callback);
-                    } catch (JSONException e) {
-                        callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-                    }
-                }
-            });
+            updateAndCreateLightsInDatabase(lights, existingLights, unreachableIds, callback);
         });
     }
 
-    private void syncNanoleafLightsToDatabase(WattsCallback<Void> callback) {
+    private void syncNanoleafLightsToDatabase(WattsCallback<LightSyncDiff> callback) {
         // Todo: get current light panel states and sync to database
         UserManager.getInstance().getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status) -> {
             if(!status.success || auth == null) {
                 callback.apply(null, new WattsCallbackStatus(status.message));
+                return;
             }
 
             NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth;
@@ -317,84 +338,27 @@ public class LightManager {
         });
     }
 
-    private List<Light> getPhillipsHueLightsFromResponse(JsonObject responseObject) throws JSONException {
-        String userId = UserManager.getInstance().getCurrentUser().getUid();
-        int currentLight = 1;
-        List<Light> ret = new ArrayList<>();
-        while(true) {
-            String integrationId = String.valueOf(currentLight);
-            JsonObject nextLight = responseObject.getAsJsonObject(integrationId);
-            if(nextLight == null)
-                break;
-
-            // TODO: Add more fields of state (i.e. on, color, brightness, etc)
-            String name = nextLight.get("name").getAsString();
-
-            JsonObject state = nextLight.get("state").getAsJsonObject();
-            boolean reachable = state.get("reachable").getAsBoolean();
-            if(!reachable) {
-                currentLight++;
-                continue;
-            }
-
-            boolean on = state.get("on").getAsBoolean();
-            float brightness = state.get("bri").getAsFloat();
-            Float hue = state.get("hue").getAsFloat();
-            Float saturation = state.get("sat").getAsFloat();
-
-            // limit hue and saturation
-            hue /= PHILLIPS_HUE_HUE_MAX;
-            saturation /= PHILLIPS_HUE_SATURATION_MAX;
-            brightness /= PHILLIPS_HUE_BRIGHTNESS_MAX;
-
-            LightState lightState = new LightState(on, brightness, hue, saturation);
-            Light light = new Light(userId, name, integrationId, IntegrationType.PHILLIPS_HUE, lightState);
-            ret.add(light);
-            currentLight++;
-        }
-
-        return ret;
-    }
-
-    private void updateAndCreateLightsInDatabase(List<Light> lights, List<Light> existingLights, WattsCallback<Void> callback) {
-        List<Light> toAddLights = removeDuplicatesAndUpdateExistingLights(existingLights, lights);
-        lightRepository.setMultipleLights(toAddLights).addOnCompleteListener(val -> {
-            lightRepository.setMultipleLights(existingLights).addOnCompleteListener(val2 -> {
-                    callback.apply(null);
-                })
-                .addOnFailureListener(task -> {
-                    callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-                });
-            })
-            .addOnFailureListener(task -> {
-                callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-            });
-    }
-
-    private List<Light> removeDuplicatesAndUpdateExistingLights(List<Light> existingLights, List<Light> lights) {
-        List<String> existingIds = new ArrayList<>();
-        for(Light l : existingLights) {
-            existingIds.add(l.getIntegrationId());
-        }
-
-        List<Light> ret = new ArrayList<>();
-        for(Light l : lights) {
-            if(!existingIds.contains(l.getIntegrationId()))
-                ret.add(l);
-            else {
-                Light el = getExistingLightById(l.getIntegrationId(), existingLights);
-                el.setLightState(l.getLightState());
-            }
+    private void updateAndCreateLightsInDatabase(List<Light> lights, List<Light> existingLights,
+                                                 Set<String> retainedIntegrationIds, WattsCallback<LightSyncDiff> callback) {
+        LightSyncDiff diff = LightReconciler.reconcile(existingLights, lights, retainedIntegrationIds);
+        Log.d(LOG_TAG, "Light sync: " + diff);
+        if(!diff.hasChanges()) {
+            callback.apply(diff);
+            return;
         }
 
-        return ret;
+        lightRepository.applyLightSyncDiff(diff).addOnCompleteListener(task -> {
+            if(task.isSuccessful())
+                callback.apply(diff);
+            else
+                callback.apply(null, new WattsCallbackStatus(task.getException().getMessage()));
+        });
     }
 
-    private Light getExistingLightById(String lightId, List<Light> existingLights) {
-        for(Light l : existingLights)
-            if(lightId.equals(l.getIntegrationId()))
-                return l;
-        return null;
+    private static class NanoleafPanelStates {
+        // keyed by panel name
+        private final Map<String, LightState> states = new HashMap<>();
+        private final List<NanoleafPanelIntegrationAuth> unreachablePanels = new ArrayList<>();
     }
 
     public static LightManager getInstance() {
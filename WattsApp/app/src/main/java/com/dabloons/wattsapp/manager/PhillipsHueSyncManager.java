@@ -0,0 +1,125 @@
+package com.dabloons.wattsapp.manager;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.dabloons.wattsapp.R;
+import com.dabloons.wattsapp.WattsApplication;
+import com.dabloons.wattsapp.model.LightSyncDiff;
+import com.dabloons.wattsapp.model.integration.PhillipsHueBridgeSnapshot;
+import com.dabloons.wattsapp.service.PhillipsHueService;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import util.FutureUtil;
+import util.StreamingJsonDecoder;
+import util.WattsCallback;
+
+/**
+ * Syncs lights and scenes for Phillips Hue from a single read of the bridge's full
+ * configuration. Syncs requested while one is running share its result.
+ */
+public class PhillipsHueSyncManager {
+
+    private final String LOG_TAG = "PhillipsHueSyncManager";
+
+    private static volatile PhillipsHueSyncManager instance;
+
+    private final PhillipsHueService phillipsHueService = PhillipsHueService.getInstance();
+
+    private final int PHILLIPS_HUE_HUE_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_hue_max));
+    private final int PHILLIPS_HUE_SATURATION_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_saturation_max));
+    private final int PHILLIPS_HUE_BRIGHTNESS_MAX = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_brightness_max));
+
+    // guarded by this
+    private CompletableFuture<PhillipsHueBridgeSnapshot> syncInProgress;
+
+    private PhillipsHueSyncManager() { }
+
+    public void sync(WattsCallback<PhillipsHueBridgeSnapshot> callback) {
+        CompletableFuture<PhillipsHueBridgeSnapshot> sync;
+        synchronized(this) {
+            sync = syncInProgress;
+            if(sync == null) {
+                sync = startSync();
+                syncInProgress = sync;
+            }
+        }
+
+        CompletableFuture<PhillipsHueBridgeSnapshot> started = sync;
+        sync.whenComplete((snapshot, throwable) -> {
+            synchronized(PhillipsHueSyncManager.this) {
+                if(syncInProgress == started)
+                    syncInProgress = null;
+            }
+        });
+
+        FutureUtil.toCallback(sync, callback);
+    }
+
+    private CompletableFuture<PhillipsHueBridgeSnapshot> startSync() {
+        CompletableFuture<PhillipsHueBridgeSnapshot> ret = new CompletableFuture<>();
+        phillipsHueService.getFullConfiguration(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                String message = "Failed to retrieve phillips hue configuration during sync";
+                Log.e(LOG_TAG, message + ": " + e.getMessage());
+                ret.completeExceptionally(new Exception(message));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                if(!response.isSuccessful()) {
+                    Log.e(LOG_TAG, response.message());
+                    ret.completeExceptionally(new Exception(response.message()));
+                    return;
+                }
+
+                PhillipsHueBridgeSnapshot snapshot;
+                try {
+                    snapshot = StreamingJsonDecoder.decodePhillipsHueConfiguration(response.body().source(),
+                            UserManager.getInstance().getCurrentUser().getUid(),
+                            PHILLIPS_HUE_HUE_MAX, PHILLIPS_HUE_SATURATION_MAX, PHILLIPS_HUE_BRIGHTNESS_MAX);
+                } catch(IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to parse phillips hue configuration: " + e.getMessage());
+                    ret.completeExceptionally(e);
+                    return;
+                }
+
+                CompletableFuture<LightSyncDiff> lights = FutureUtil.<LightSyncDiff>fromCallback(cb ->
+                        LightManager.getInstance().syncPhillipsHueLights(snapshot.getLights(), snapshot.getUnreachableLightIds(), cb));
+                CompletableFuture<?> scenes = FutureUtil.<Void>fromCallback(cb ->
+                        IntegrationSceneManager.getInstance().syncPhillipsHueScenes(snapshot.getScenes(), cb));
+
+                CompletableFuture.allOf(lights, scenes).whenComplete((nil, throwable) -> {
+                    if(throwable != null) {
+                        ret.completeExceptionally(throwable);
+                        return;
+                    }
+
+                    snapshot.setLightSyncDiff(lights.join());
+                    ret.complete(snapshot);
+                });
+            }
+        });
+        return ret;
+    }
+
+    public static PhillipsHueSyncManager getInstance() {
+        PhillipsHueSyncManager result = instance;
+        if (result != null) {
+            return result;
+        }
+        synchronized(PhillipsHueSyncManager.class) {
+            if (instance == null) {
+                instance = new PhillipsHueSyncManager();
+            }
+            return instance;
+        }
+    }
+}
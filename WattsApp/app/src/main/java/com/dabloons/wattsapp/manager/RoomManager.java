@@ -4,14 +4,15 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightCommandResult;
 import com.dabloons.wattsapp.model.LightState;
 import com.dabloons.wattsapp.model.Room;
 import com.dabloons.wattsapp.model.integration.IntegrationType;
 import com.dabloons.wattsapp.repository.RoomRepository;
 import com.dabloons.wattsapp.repository.UserRepository;
-import com.dabloons.wattsapp.service.NanoleafService;
 import com.dabloons.wattsapp.service.PhillipsHueService;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
@@ -22,14 +23,18 @@ import com.google.gson.JsonParser;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import util.FutureUtil;
 import util.UIMessageUtil;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
@@ -42,17 +47,13 @@ public class RoomManager
 
     private RoomRepository roomRepository = RoomRepository.getInstance();
     private PhillipsHueService phillipsHueService = PhillipsHueService.getInstance();
-    private NanoleafService nanoleafService = NanoleafService.getInstance();
     private LightManager lightManager = LightManager.getInstance();
 
     private UserManager userManager = UserManager.getInstance();
 
-    private ConcurrentLinkedQueue<IntegrationType> integrationsToResolve;
+    private final long ROOM_COMMAND_TIMEOUT_MS = Long.parseLong(WattsApplication.getResourceString(R.string.room_command_timeout_ms));
 
-    private RoomManager()
-    {
-        integrationsToResolve = new ConcurrentLinkedQueue<>();
-    }
+    private RoomManager() { }
 
     public static RoomManager getInstance() {
         RoomManager result = instance;
@@ -172,6 +173,7 @@ public class RoomManager
     }
 
     public void deleteRoom(Room room, WattsCallback<Void> callback) {
+        SceneManager.getInstance().invalidateActivationPlans(room.getUid());
         roomRepository.deleteRoom(room.getUid()).addOnCompleteListener(task -> {
             if(!task.isComplete()) {
                 callback.apply(null, new WattsCallbackStatus("Failed to delete room"));
@@ -243,6 +245,7 @@ public class RoomManager
                             .getAsJsonObject().get("id").getAsString();
                     room.setIntegrationId(integrationId);
                     roomRepository.setRoomIntegrationId(room.getUid(), integrationId); // may need to do onSuccessListener
+                    SceneManager.getInstance().invalidateActivationPlans(room.getUid());
                     callback.apply(null);
                 } catch (Exception e) {
                     callback.apply(null, new WattsCallbackStatus(e.getMessage()));
@@ -253,21 +256,30 @@ public class RoomManager
 
     private void setRoomLightState(Room room, LightState state, WattsCallback<Void> callback) {
         userManager.getUserIntegrations((integrations, status) -> {
-            setIntegrationsToResolve(integrations);
+            if(!status.success) {
+                callback.apply(null, new WattsCallbackStatus(status.message));
+                return;
+            }
+
+            // Each invocation tracks its own completion so concurrent room commands can't interfere
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
             for(IntegrationType integration : integrations) {
                 switch (integration) {
                     case PHILLIPS_HUE:
-                        setPhillipsHueRoomLightState(room, state, (var, status1) -> {
-                            resolveIntegration(integration, callback);
-                        });
+                        pending.add(FutureUtil.fromCallback(cb -> setPhillipsHueRoomLightState(room, state, cb)));
                         break;
                     case NANOLEAF:
-                        setNanoleafRoomLightState(room, state, (var, status1) -> {
-                            resolveIntegration(integration, callback);
-                        });
+                        pending.add(FutureUtil.fromCallback(cb -> setNanoleafRoomLightState(room, state, (results, status1) -> {
+                            if(!status1.success)
+                                Log.w(LOG_TAG, status1.message + ": " + results);
+                            cb.apply(null, status1);
+                        })));
                         break;
                 }
             }
+
+            CompletableFuture<Void> all = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+            FutureUtil.toCallback(FutureUtil.withTimeout(all, ROOM_COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS), callback);
         });
 
         setRoomLightStateInDB(room, state, (var, status) -> {
@@ -323,36 +335,49 @@ public class RoomManager
         });
     }
 
-    private void setNanoleafRoomLightState(Room room, LightState state, WattsCallback<Void> callback) {
+    private void setNanoleafRoomLightState(Room room, LightState state, WattsCallback<List<LightCommandResult>> callback) {
         getRoomLightsOfIntegration(room, IntegrationType.NANOLEAF, (nanoleafs, status) -> {
-            ConcurrentLinkedQueue<Light> remaining = new ConcurrentLinkedQueue<>(nanoleafs);
-            setEachNanoleafLightState(remaining, state, callback);
+            setNanoleafLightStates(room, nanoleafs, state, callback);
         });
     }
 
-    private void setEachNanoleafLightState(ConcurrentLinkedQueue<Light> remaining, LightState state, WattsCallback<Void> callback) {
-        if(remaining.size() == 0) {
-            callback.apply(null);
+    /**
+     * Sends the state to every panel at once and reports once all of them have answered,
+     * so the total latency is that of the slowest panel.
+     */
+    private void setNanoleafLightStates(Room room, List<Light> lights, LightState state, WattsCallback<List<LightCommandResult>> callback) {
+        if(lights.size() == 0) {
+            callback.apply(new ArrayList<>());
             return;
         }
 
-        Light l = remaining.poll();
-        nanoleafService.setLightState(l, state, new Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-            }
+        AtomicInteger remaining = new AtomicInteger(lights.size());
+        List<LightCommandResult> results = Collections.synchronizedList(new ArrayList<>());
+
+        for(Light light : lights) {
+            long start = System.nanoTime();
+            // through the mailbox so a room command never overlaps a command to the same panel
+            lightManager.sendLightStateCommand(light, state, room.getUid(), (var, status) -> {
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                results.add(new LightCommandResult(light.getUid(), light.getName(), status.success, status.message, latency));
+                if(remaining.decrementAndGet() == 0)
+                    onAllNanoleafResults(new ArrayList<>(results), callback);
+            });
+        }
+    }
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                if(remaining.size() == 0) {
-                    callback.apply(null);
-                    return;
-                }
+    private void onAllNanoleafResults(List<LightCommandResult> results, WattsCallback<List<LightCommandResult>> callback) {
+        int failed = 0;
+        for(LightCommandResult result : results) {
+            if(!result.isSuccess())
+                failed++;
+        }
 
-                setEachNanoleafLightState(new ConcurrentLinkedQueue<>(remaining), state, callback);
-            }
-        });
+        if(failed == 0)
+            callback.apply(results);
+        else
+            callback.apply(results, new WattsCallbackStatus(
+                    String.format("Failed to set state for %d of %d nanoleaf panels", failed, results.size())));
     }
 
     private void integrationsUsedInLights(List<String> lightIds, WattsCallback<List<IntegrationType>> callback) {
@@ -375,23 +400,6 @@ public class RoomManager
         return ret;
     }
 
-    private void setIntegrationsToResolve(List<IntegrationType> integrations) {
-        this.integrationsToResolve = new ConcurrentLinkedQueue<>(integrations);
-    }
-
-    private void resolveIntegration(IntegrationType integration, WattsCallback<Void> onAllResolvedCallback) {
-        if(this.integrationsToResolve.contains(integration)) {
-            this.integrationsToResolve.remove(integration);
-        }
-
-        if(this.integrationsToResolve.size() == 0)
-            onAllResolvedCallback.apply(null);
-    }
-
-    private void resetIntegrationsToResolve() {
-        this.integrationsToResolve.clear();
-    }
-
     /**
      * Debug only
      */
@@ -0,0 +1,162 @@
+package com.dabloons.wattsapp.manager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.dabloons.wattsapp.model.SceneActivationResult;
+import com.dabloons.wattsapp.model.integration.IntegrationScene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import util.WattsCallback;
+import util.WattsCallbackStatus;
+
+/**
+ * The requests needed to activate a scene, with credentials and targets already resolved so
+ * executing the plan only has to send them. All requests are sent at once so every
+ * integration changes as close together as possible.
+ */
+public class SceneActivationPlan {
+
+    @FunctionalInterface
+    public interface Dispatcher {
+        void dispatch(Callback callback);
+    }
+
+    @FunctionalInterface
+    public interface ResponseCheck {
+        /**
+         * @return Why the successful response still failed, or null if it didn't
+         */
+        @Nullable
+        String getError(Response response) throws IOException;
+    }
+
+    public static class Step {
+        private final IntegrationScene scene;
+        @Nullable
+        private final Dispatcher dispatcher;
+        @Nullable
+        private final ResponseCheck responseCheck;
+        // set for steps that could not be resolved
+        @Nullable
+        private final String failureMessage;
+
+        public Step(IntegrationScene scene, Dispatcher dispatcher) {
+            this(scene, dispatcher, null);
+        }
+
+        /**
+         * @param responseCheck Checks the body of a 2xx response, for integrations that report
+         *                      failures inside a successful response
+         */
+        public Step(IntegrationScene scene, Dispatcher dispatcher, @Nullable ResponseCheck responseCheck) {
+            this(scene, dispatcher, responseCheck, null);
+        }
+
+        private Step(IntegrationScene scene, @Nullable Dispatcher dispatcher,
+                     @Nullable ResponseCheck responseCheck, @Nullable String failureMessage) {
+            this.scene = scene;
+            this.dispatcher = dispatcher;
+            this.responseCheck = responseCheck;
+            this.failureMessage = failureMessage;
+        }
+
+        /**
+         * A step that could not be resolved, it fails when executed without sending anything
+         */
+        public static Step failed(IntegrationScene scene, String message) {
+            return new Step(scene, null, null, message);
+        }
+    }
+
+    private final List<Step> steps;
+
+    public SceneActivationPlan(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    /**
+     * Whether every step was resolved, only these plans are worth reusing
+     */
+    public boolean isFullyResolved() {
+        for(Step step : steps) {
+            if(step.failureMessage != null)
+                return false;
+        }
+        return true;
+    }
+
+    public void execute(WattsCallback<List<SceneActivationResult>> callback) {
+        if(steps.isEmpty()) {
+            callback.apply(new ArrayList<>());
+            return;
+        }
+
+        SceneActivationResult[] results = new SceneActivationResult[steps.size()];
+        AtomicInteger remaining = new AtomicInteger(steps.size());
+        for(int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            int index = i;
+            long start = System.currentTimeMillis();
+            WattsCallback<Void> onStepDone = (var, status) -> {
+                results[index] = new SceneActivationResult(step.scene.getIntegrationType(), step.scene.getName(),
+                        status.success, status.message, System.currentTimeMillis() - start);
+                if(remaining.decrementAndGet() == 0)
+                    onAllStepsDone(Arrays.asList(results), callback);
+            };
+
+            if(step.failureMessage != null) {
+                onStepDone.apply(null, new WattsCallbackStatus(step.failureMessage));
+                continue;
+            }
+
+            step.dispatcher.dispatch(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    onStepDone.apply(null, new WattsCallbackStatus(e.getMessage()));
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    WattsCallbackStatus status;
+                    try {
+                        String error = !response.isSuccessful() ? response.message()
+                                : step.responseCheck == null ? null : step.responseCheck.getError(response);
+                        status = error == null ? new WattsCallbackStatus(true) : new WattsCallbackStatus(error);
+                    } catch(IOException e) {
+                        status = new WattsCallbackStatus("Failed to read response: " + e.getMessage());
+                    } finally {
+                        response.close();
+                    }
+                    onStepDone.apply(null, status);
+                }
+            });
+        }
+    }
+
+    private void onAllStepsDone(List<SceneActivationResult> results, WattsCallback<List<SceneActivationResult>> callback) {
+        List<String> failures = new ArrayList<>();
+        for(SceneActivationResult result : results) {
+            if(!result.isSuccess())
+                failures.add(result.toString());
+        }
+
+        if(failures.isEmpty())
+            callback.apply(results);
+        else
+            callback.apply(results, new WattsCallbackStatus(String.format("%d of %d scene requests failed: %s",
+                    failures.size(), results.size(), String.join(", ", failures))));
+    }
+}
@@ -2,26 +2,32 @@ package com.dabloons.wattsapp.manager;
 
 import android.util.Log;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.dabloons.wattsapp.model.Room;
 import com.dabloons.wattsapp.model.Scene;
+import com.dabloons.wattsapp.model.SceneActivationResult;
 import com.dabloons.wattsapp.model.integration.IntegrationAuth;
 import com.dabloons.wattsapp.model.integration.IntegrationScene;
 import com.dabloons.wattsapp.model.integration.IntegrationType;
+import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
+import com.dabloons.wattsapp.model.integration.PhillipsHueIntegrationAuth;
 import com.dabloons.wattsapp.repository.SceneRepository;
 import com.dabloons.wattsapp.repository.UserRepository;
 import com.dabloons.wattsapp.service.NanoleafService;
 import com.dabloons.wattsapp.service.PhillipsHueService;
+import com.dabloons.wattsapp.service.PreparedRequest;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.Response;
+import util.FutureUtil;
+import util.StreamingJsonDecoder;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
 
@@ -37,12 +43,19 @@ public class SceneManager {
     private UserManager userManager;
     private RoomManager roomManager;
 
+    // compiled activation plans keyed by scene uid
+    private final Map<String, CompiledPlan> activationPlans = new ConcurrentHashMap<>();
+    private final AtomicInteger planGeneration = new AtomicInteger();
+
     private SceneManager() {
         sceneRepository = SceneRepository.getInstance();
         phillipsHueService = PhillipsHueService.getInstance();
         nanoleafService = NanoleafService.getInstance();
         userManager = UserManager.getInstance();
         roomManager = RoomManager.getInstance();
+
+        // plans hold resolved credentials, so any credential change makes them stale
+        userManager.addIntegrationAuthChangeListener(this::invalidateAllActivationPlans);
     }
 
     public void createScene(String roomID, String sceneName, List<IntegrationScene> sceneList, WattsCallback<Scene> callback)
@@ -55,11 +68,17 @@ public class SceneManager {
         sceneRepository.getAllScenes(roomID, callback);
     }
 
+    public void getScenesIncrementally(String roomID, WattsCallback<List<Scene>> callback)
+    {
+        sceneRepository.getScenesIncrementally(roomID, callback);
+    }
+
     public void deleteUserScenes(WattsCallback<Void> callback) {
         sceneRepository.deleteScenesForUser(callback);
     }
 
     public void deleteScene(Scene scene, WattsCallback<Void> callback) {
+        activationPlans.remove(scene.getUid());
         sceneRepository.deleteScene(scene)
                 .addOnCompleteListener(task -> {
                     callback.apply(null, new WattsCallbackStatus(true));
@@ -69,84 +88,180 @@ public class SceneManager {
                 });
     }
 
-    public void activateScene(Scene scene, WattsCallback<Void> callback) {
-        List<IntegrationScene> scenes = scene.getIntegrationScenes();
-        roomManager.getRoomForId(scene.getRoomId(), (room, status) -> {
-            activateIntegrationScenes(room, scenes, 0, (var, status1) -> {
-                if(!status1.success) {
-                    Log.e(LOG_TAG, status1.message);
-                    callback.apply(null, new WattsCallbackStatus(status1.message));
-                    return;
-                }
+    /**
+     * Activate every integration scene of the scene at once and report the result of each.
+     * Uses the scene's compiled plan when there is one, so no Firestore reads are needed.
+     */
+    public void activateScene(Scene scene, WattsCallback<List<SceneActivationResult>> callback) {
+        CompiledPlan cached = activationPlans.get(scene.getUid());
+        if(cached != null && cached.signature.equals(getPlanSignature(scene))) {
+            executeActivationPlan(cached.plan, callback);
+            return;
+        }
 
-                callback.apply(null);
-            });
+        compileAndCacheActivationPlan(scene, null, (plan, status) -> {
+            if(!status.success) {
+                Log.e(LOG_TAG, status.message);
+                callback.apply(null, new WattsCallbackStatus(status.message));
+                return;
+            }
+
+            executeActivationPlan(plan, callback);
         });
     }
 
-    private void activateIntegrationScenes(Room room, List<IntegrationScene> scenes, int index, WattsCallback<Void> callback) {
-        if(index >= scenes.size()) {
-            callback.apply(null);
-            return;
-        }
+    /**
+     * Compile activation plans for the scenes of a room ahead of time
+     */
+    public void precompileActivationPlans(Room room, List<Scene> scenes) {
+        for(Scene scene : scenes) {
+            CompiledPlan cached = activationPlans.get(scene.getUid());
+            if(cached != null && cached.signature.equals(getPlanSignature(scene)))
+                continue;
 
-        IntegrationScene scene = scenes.get(index);
-        switch(scene.getIntegrationType()) {
-            case PHILLIPS_HUE:
-                activatePhillipsHueScene(scene, room, index, scenes, callback);
-                break;
-            case NANOLEAF:
-                activateNanoleafScene(scene, room, index, scenes, callback);
-                break;
-            default:
-                Log.e(LOG_TAG, "Cannot activate scene for integration: " + scene.getIntegrationType());
-                break;
+            compileAndCacheActivationPlan(scene, room, (plan, status) -> {
+                if(!status.success)
+                    Log.w(LOG_TAG, "Failed to compile activation plan for " + scene.getName() + ": " + status.message);
+            });
         }
     }
 
-    private void activatePhillipsHueScene(IntegrationScene scene, Room room, int index, List<IntegrationScene> scenes, WattsCallback<Void> callback) {
-        phillipsHueService.activateScene(scene, room, new Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-            }
+    /**
+     * Drop the compiled plans of a room's scenes, e.g. when the room is deleted or its group changes
+     */
+    public void invalidateActivationPlans(String roomId) {
+        planGeneration.incrementAndGet();
+        activationPlans.values().removeIf(plan -> plan.roomId.equals(roomId));
+    }
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                if(!response.isSuccessful()) {
-                    callback.apply(null, new WattsCallbackStatus(response.message()));
-                    return;
-                }
+    private void invalidateAllActivationPlans() {
+        planGeneration.incrementAndGet();
+        activationPlans.clear();
+    }
 
-                int next = index + 1;
-                activateIntegrationScenes(room, scenes, next, callback);
-            }
+    private void executeActivationPlan(SceneActivationPlan plan, WattsCallback<List<SceneActivationResult>> callback) {
+        plan.execute((results, status) -> {
+            if(!status.success)
+                Log.e(LOG_TAG, status.message);
+            callback.apply(results, status);
         });
     }
 
-    private void activateNanoleafScene(IntegrationScene scene, Room room, int index, List<IntegrationScene> scenes, WattsCallback<Void> callback) {
-        String lightId = scene.getParentLightId();
-        userManager.getNanoleafPanelIntegrationAuth(lightId, (panel, status) -> {
-            nanoleafService.activateEffectForLight(panel, scene, new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-                }
+    private void compileAndCacheActivationPlan(Scene scene, @Nullable Room room, WattsCallback<SceneActivationPlan> callback) {
+        int generation = planGeneration.get();
+        String signature = getPlanSignature(scene);
+        compileActivationPlan(scene, room, (plan, status) -> {
+            // plans with unresolved steps, or compiled while something they depend on changed, are not reused
+            if(status.success && plan.isFullyResolved() && generation == planGeneration.get())
+                activationPlans.put(scene.getUid(), new CompiledPlan(plan, signature, scene.getRoomId()));
+            callback.apply(plan, status);
+        });
+    }
 
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                    if (!response.isSuccessful()) {
-                        callback.apply(null, new WattsCallbackStatus(response.message()));
-                        return;
-                    }
+    // Changes when the scene's room or integration scenes change, so edited scenes are recompiled
+    private String getPlanSignature(Scene scene) {
+        StringBuilder signature = new StringBuilder(String.valueOf(scene.getRoomId()));
+        for(IntegrationScene integrationScene : scene.getIntegrationScenes()) {
+            signature.append('|')
+                    .append(integrationScene.getIntegrationType())
+                    .append(':').append(integrationScene.getIntegrationId())
+                    .append(':').append(integrationScene.getParentLightId());
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Resolve the room and credentials for every integration scene and serialize each request
+     * up front, so executing the plan does nothing but send requests
+     * @param knownRoom The scene's room if the caller already has it, otherwise it is looked up
+     */
+    private void compileActivationPlan(Scene scene, @Nullable Room knownRoom, WattsCallback<SceneActivationPlan> callback) {
+        List<IntegrationScene> scenes = scene.getIntegrationScenes();
+
+        boolean needsHue = false;
+        boolean needsNanoleaf = false;
+        for(IntegrationScene integrationScene : scenes) {
+            needsHue |= integrationScene.getIntegrationType() == IntegrationType.PHILLIPS_HUE;
+            needsNanoleaf |= integrationScene.getIntegrationType() == IntegrationType.NANOLEAF;
+        }
 
-                    int next = index + 1;
-                    activateIntegrationScenes(room, scenes, next, callback);
+        CompletableFuture<Room> room;
+        if(!needsHue || knownRoom != null)
+            room = CompletableFuture.completedFuture(knownRoom);
+        else
+            room = FutureUtil.<Room>fromCallback(cb -> roomManager.getRoomForId(scene.getRoomId(), cb));
+        CompletableFuture<IntegrationAuth> hueAuth = needsHue
+                ? FutureUtil.<IntegrationAuth>fromCallback(cb -> userManager.getIntegrationAuthData(IntegrationType.PHILLIPS_HUE, cb))
+                : CompletableFuture.completedFuture(null);
+        CompletableFuture<IntegrationAuth> nanoleafAuth = needsNanoleaf
+                ? FutureUtil.<IntegrationAuth>fromCallback(cb -> userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, cb))
+                : CompletableFuture.completedFuture(null);
+
+        // a missing credential only fails the steps that need it
+        CompletableFuture.allOf(room, hueAuth, nanoleafAuth).handle((nil, throwable) -> {
+            List<SceneActivationPlan.Step> steps = new ArrayList<>();
+            for(IntegrationScene integrationScene : scenes) {
+                switch(integrationScene.getIntegrationType()) {
+                    case PHILLIPS_HUE:
+                        steps.add(getPhillipsHueStep(integrationScene, room, hueAuth));
+                        break;
+                    case NANOLEAF:
+                        steps.add(getNanoleafStep(integrationScene, nanoleafAuth));
+                        break;
+                    default:
+                        Log.e(LOG_TAG, "Cannot activate scene for integration: " + integrationScene.getIntegrationType());
+                        steps.add(SceneActivationPlan.Step.failed(integrationScene,
+                                "Cannot activate scene for integration: " + integrationScene.getIntegrationType()));
+                        break;
                 }
-            });
+            }
+
+            callback.apply(new SceneActivationPlan(steps));
+            return null;
         });
     }
 
+    private SceneActivationPlan.Step getPhillipsHueStep(IntegrationScene scene, CompletableFuture<Room> room,
+                                                        CompletableFuture<IntegrationAuth> auth) {
+        if(room.isCompletedExceptionally() || room.join() == null)
+            return SceneActivationPlan.Step.failed(scene, "No room for scene");
+        if(auth.isCompletedExceptionally() || auth.join() == null)
+            return SceneActivationPlan.Step.failed(scene, "No phillips hue credentials");
+
+        PreparedRequest request = phillipsHueService.prepareActivateScene(
+                (PhillipsHueIntegrationAuth) auth.join(), scene, room.join());
+        // the bridge answers 200 even when activating the scene failed, the errors are in the body
+        return new SceneActivationPlan.Step(scene, callback -> phillipsHueService.sendPreparedRequest(request, callback),
+                response -> StreamingJsonDecoder.decodePhillipsHueError(response.body().source()));
+    }
+
+    private SceneActivationPlan.Step getNanoleafStep(IntegrationScene scene, CompletableFuture<IntegrationAuth> auth) {
+        if(auth.isCompletedExceptionally() || auth.join() == null)
+            return SceneActivationPlan.Step.failed(scene, "No nanoleaf credentials");
+
+        NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth.join();
+        for(NanoleafPanelIntegrationAuth panel : collection.getPanelAuths()) {
+            if(panel.getUid().equals(scene.getParentLightId())) {
+                PreparedRequest request = nanoleafService.prepareActivateEffect(panel, scene);
+                return new SceneActivationPlan.Step(scene, callback -> nanoleafService.sendPreparedRequest(request, callback));
+            }
+        }
+
+        return SceneActivationPlan.Step.failed(scene, "No nanoleaf panel with id " + scene.getParentLightId());
+    }
+
+    private static class CompiledPlan {
+        private final SceneActivationPlan plan;
+        private final String signature;
+        private final String roomId;
+
+        private CompiledPlan(SceneActivationPlan plan, String signature, String roomId) {
+            this.plan = plan;
+            this.signature = signature;
+            this.roomId = roomId;
+        }
+    }
+
     public static SceneManager getInstance() {
         SceneManager result = instance;
         if (result != null) {
@@ -0,0 +1,190 @@
+package com.dabloons.wattsapp.manager;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dabloons.wattsapp.R;
+import com.dabloons.wattsapp.WattsApplication;
+import com.dabloons.wattsapp.manager.auth.NanoleafAuthManager;
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.Room;
+import com.dabloons.wattsapp.model.integration.IntegrationAuth;
+import com.dabloons.wattsapp.model.integration.IntegrationType;
+import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
+import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
+import com.dabloons.wattsapp.model.integration.PhillipsHueIntegrationAuth;
+import com.dabloons.wattsapp.repository.RoomRepository;
+import com.dabloons.wattsapp.service.HttpTransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import util.FutureUtil;
+import util.WattsCallback;
+
+/**
+ * Gets the app ready to render at startup. Integrations, credentials, rooms and lights are
+ * loaded from Firestore concurrently. The slower sync with the devices themselves then runs in
+ * the background for each integration independently, notifying listeners as each one finishes.
+ * Only the Nanoleaf sync waits on reconnecting known panels.
+ */
+public class StartupManager {
+
+    private final String LOG_TAG = "StartupManager";
+
+    private static volatile StartupManager instance;
+
+    private final long STARTUP_PREFETCH_TIMEOUT_MS = Long.parseLong(WattsApplication.getResourceString(R.string.startup_prefetch_timeout_ms));
+
+    private final UserManager userManager = UserManager.getInstance();
+    private final LightManager lightManager = LightManager.getInstance();
+    private final RoomRepository roomRepository = RoomRepository.getInstance();
+
+    private final List<Runnable> lightSyncListeners = new CopyOnWriteArrayList<>();
+
+    // phase name to duration in ms, in the order the phases finished
+    private final Map<String, Long> phaseTimings = Collections.synchronizedMap(new LinkedHashMap<>());
+    private long startTime;
+
+    private StartupManager() { }
+
+    /**
+     * Prefetch what the main screen needs, then start syncing devices in the background
+     * @param onReady Called once the prefetch is done or has timed out, the app can render then
+     */
+    public void start(WattsCallback<Void> onReady) {
+        startTime = SystemClock.elapsedRealtime();
+        phaseTimings.clear();
+
+        CompletableFuture<List<IntegrationType>> integrations = timePhase("integrations",
+                FutureUtil.<List<IntegrationType>>fromCallback(userManager::getUserIntegrations));
+        CompletableFuture<?> auth = integrations.thenCompose(types -> {
+            // warms the credential cache so the first light command doesn't wait on it
+            List<CompletableFuture<IntegrationAuth>> auths = new ArrayList<>();
+            for(IntegrationType type : types)
+                auths.add(FutureUtil.<IntegrationAuth>fromCallback(cb -> userManager.getIntegrationAuthData(type, cb)));
+            return timePhase("auth", FutureUtil.allOf(auths)).thenAccept(this::prewarmConnections);
+        });
+        CompletableFuture<?> rooms = timePhase("rooms", FutureUtil.<ArrayList<Room>>fromCallback(roomRepository::getUserDefinedRooms));
+        CompletableFuture<?> lights = timePhase("lights", FutureUtil.<List<Light>>fromCallback(lightManager::getLights));
+
+        CompletableFuture<Void> prefetch = CompletableFuture.allOf(auth, rooms, lights);
+        FutureUtil.withTimeout(prefetch, STARTUP_PREFETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((nil, throwable) -> {
+                    if(throwable != null)
+                        Log.w(LOG_TAG, "Startup prefetch incomplete: " + FutureUtil.getMessage(throwable));
+                    recordPhase("prefetch");
+
+                    onReady.apply(null);
+                    syncDevices();
+                });
+    }
+
+    /**
+     * Register a listener that runs each time an integration finishes syncing its lights
+     */
+    public void addLightSyncListener(Runnable listener) {
+        lightSyncListeners.add(listener);
+    }
+
+    public void removeLightSyncListener(Runnable listener) {
+        lightSyncListeners.remove(listener);
+    }
+
+    public Map<String, Long> getPhaseTimings() {
+        synchronized(phaseTimings) {
+            return new LinkedHashMap<>(phaseTimings);
+        }
+    }
+
+    private void syncDevices() {
+        long syncStart = SystemClock.elapsedRealtime();
+        userManager.getUserIntegrations((integrations, status) -> {
+            if(!status.success) {
+                Log.w(LOG_TAG, "Background light sync failed: " + status.message);
+                return;
+            }
+
+            // integrations sync independently so one slow integration doesn't hold up the others
+            for(IntegrationType type : integrations) {
+                if(type == IntegrationType.NANOLEAF)
+                    reconnectAndSyncNanoleaf(syncStart);
+                else
+                    syncLights(type, syncStart);
+            }
+        });
+    }
+
+    // panels that moved after a DHCP renewal are found first so the sync reaches them
+    private void reconnectAndSyncNanoleaf(long syncStart) {
+        NanoleafAuthManager.getInstance().reconnectKnownPanels((moved, status) -> {
+            if(!status.success)
+                Log.w(LOG_TAG, "Nanoleaf reconnect failed: " + status.message);
+            else if(moved > 0)
+                Log.i(LOG_TAG, "Updated addresses of " + moved + " nanoleaf panels");
+            recordPhase("nanoleaf reconnect");
+
+            syncLights(IntegrationType.NANOLEAF, syncStart);
+        });
+    }
+
+    private void syncLights(IntegrationType type, long syncStart) {
+        lightManager.syncLightsForIntegration(type, (diff, status) -> {
+            if(!status.success)
+                Log.w(LOG_TAG, "Background " + type + " light sync failed: " + status.message);
+            Log.i(LOG_TAG, "Background " + type + " light sync finished in " + (SystemClock.elapsedRealtime() - syncStart) + "ms: " + diff);
+            recordPhase(type + " sync");
+            Log.i(LOG_TAG, "Transport after " + type + " sync: " + HttpTransport.getInstance().getMetrics());
+
+            for(Runnable listener : lightSyncListeners)
+                listener.run();
+        });
+    }
+
+    // connect to every integration now so the first commands reuse a pooled connection
+    private void prewarmConnections(List<IntegrationAuth> auths) {
+        HttpTransport transport = HttpTransport.getInstance();
+        for(IntegrationAuth auth : auths) {
+            if(auth instanceof PhillipsHueIntegrationAuth)
+                transport.prewarm(WattsApplication.getResourceString(R.string.hue_api_base_url));
+            else if(auth instanceof NanoleafPanelAuthCollection && ((NanoleafPanelAuthCollection) auth).getPanelAuths() != null) {
+                for(NanoleafPanelIntegrationAuth panel : ((NanoleafPanelAuthCollection) auth).getPanelAuths())
+                    transport.prewarm(panel.getBaseUrl());
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> timePhase(String phase, CompletableFuture<T> future) {
+        future.whenComplete((result, throwable) -> {
+            if(throwable != null)
+                Log.w(LOG_TAG, "Startup phase " + phase + " failed: " + FutureUtil.getMessage(throwable));
+            recordPhase(phase);
+        });
+        return future;
+    }
+
+    private void recordPhase(String phase) {
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        phaseTimings.put(phase, elapsed);
+        Log.i(LOG_TAG, "Startup phase " + phase + " done at " + elapsed + "ms");
+    }
+
+    public static StartupManager getInstance() {
+        StartupManager result = instance;
+        if (result != null) {
+            return result;
+        }
+        synchronized(StartupManager.class) {
+            if (instance == null) {
+                instance = new StartupManager();
+            }
+            return instance;
+        }
+    }
+}
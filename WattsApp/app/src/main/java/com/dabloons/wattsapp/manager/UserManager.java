@@ -11,14 +11,21 @@ import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
 import com.dabloons.wattsapp.model.integration.PhillipsHueIntegrationAuth;
 import com.dabloons.wattsapp.repository.LightRepository;
+import com.dabloons.wattsapp.repository.NanoleafDiscoveryCache;
 import com.dabloons.wattsapp.repository.UserAuthRepository;
 import com.dabloons.wattsapp.repository.UserRepository;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import util.FutureUtil;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
 
@@ -31,10 +38,22 @@ public class UserManager {
     private UserRepository userRepository;
     private UserAuthRepository userAuthRepository;
 
+    // In-memory credentials so light commands don't wait on a Firestore read
+    private final Map<IntegrationType, IntegrationAuth> integrationAuthCache;
+    private final Map<IntegrationType, ListenerRegistration> integrationAuthListeners;
+    // the credentials last seen for each integration, kept across cache removals so refills can be compared
+    private final Map<IntegrationType, String> integrationCredentials;
+    private String integrationAuthCacheUserId;
+    private final List<Runnable> integrationAuthChangeListeners;
+
     // Todo: Make every singleton class like this (private constructor, vars initalized in constructor)
     private UserManager() {
         userRepository = UserRepository.getInstance();
         userAuthRepository = UserAuthRepository.getInstance();
+        integrationAuthCache = new ConcurrentHashMap<>();
+        integrationAuthListeners = new ConcurrentHashMap<>();
+        integrationCredentials = new ConcurrentHashMap<>();
+        integrationAuthChangeListeners = new CopyOnWriteArrayList<>();
     }
 
     public void createUser(){
@@ -47,31 +66,31 @@ public class UserManager {
     }
 
     public void getIntegrationAuthData(IntegrationType type, WattsCallback<IntegrationAuth> callback) {
-        switch(type) {
-            case PHILLIPS_HUE:
-                userAuthRepository.getIntegrationAuth(type)
-                        .continueWith(task -> task.getResult().toObject(PhillipsHueIntegrationAuth.class))
-                        .addOnCompleteListener(task -> {
-                            callback.apply(task.getResult());
-                        })
-                        .addOnFailureListener(task -> {
-                            callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-                        });
-                break;
-            case NANOLEAF:
-                userAuthRepository.getIntegrationAuth(type)
-                        .continueWith(task -> task.getResult().toObject(NanoleafPanelAuthCollection.class))
-                        .addOnCompleteListener(task -> {
-                            callback.apply(task.getResult());
-                        })
-                        .addOnFailureListener(task -> {
-                            callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-                        });
-                break;
-            default:
-                Log.e(LOG_TAG, "Unknown integration for retrieving auth data");
-                break;
+        Class<? extends IntegrationAuth> authClass = getIntegrationAuthClass(type);
+        if(authClass == null) {
+            Log.e(LOG_TAG, "Unknown integration for retrieving auth data");
+            return;
         }
+
+        IntegrationAuth cached = getCachedIntegrationAuth(type);
+        if(cached != null) {
+            callback.apply(cached);
+            return;
+        }
+
+        userAuthRepository.getIntegrationAuth(type)
+                .continueWith(task -> task.getResult().toObject(authClass))
+                .addOnCompleteListener(task -> {
+                    if(!task.isSuccessful())
+                        return;
+
+                    IntegrationAuth auth = task.getResult();
+                    cacheIntegrationAuth(type, auth);
+                    callback.apply(auth);
+                })
+                .addOnFailureListener(task -> {
+                    callback.apply(null, new WattsCallbackStatus(task.getMessage()));
+                });
     }
 
     public void addIntegrationAuthData(IntegrationType type, IntegrationAuth authData, WattsCallback<Void> callback) {
@@ -80,26 +99,26 @@ public class UserManager {
                 PhillipsHueIntegrationAuth phAuthData = (PhillipsHueIntegrationAuth) authData;
                 userAuthRepository.addPhillipsHueIntegrationToUser(phAuthData)
                         .addOnCompleteListener(task -> {
-                            if(task.isComplete())
+                            // only cached once saved, so the cache never holds what Firestore doesn't
+                            if(task.isSuccessful()) {
+                                cacheIntegrationAuth(type, phAuthData);
                                 callback.apply(null);
+                            }
                             else
                                 callback.apply(null, new WattsCallbackStatus("Failed to add integration auth data: " + type));
-                        })
-                        .addOnFailureListener(task -> {
-                            callback.apply(null, new WattsCallbackStatus(task.getMessage()));
                         });
                 break;
             case NANOLEAF:
                 NanoleafPanelAuthCollection nAuth = (NanoleafPanelAuthCollection) authData;
                 userAuthRepository.addNanoleafIntegrationToUser(nAuth)
                         .addOnCompleteListener(task -> {
-                            if(task.isComplete())
+                            // only cached once saved, so the cache never holds what Firestore doesn't
+                            if(task.isSuccessful()) {
+                                cacheIntegrationAuth(type, nAuth);
                                 callback.apply(null);
+                            }
                             else
                                 callback.apply(null, new WattsCallbackStatus("Failed to add integration auth data: nanoleaf"));
-                        })
-                        .addOnFailureListener(task -> {
-                            callback.apply(null, new WattsCallbackStatus(task.getMessage()));
                         });
                 break;
             default:
@@ -108,20 +127,23 @@ public class UserManager {
     }
 
     public void getNanoleafPanelIntegrationAuth(String id, WattsCallback<NanoleafPanelIntegrationAuth> callback) {
-        userAuthRepository.getIntegrationAuth(IntegrationType.NANOLEAF)
-                .addOnCompleteListener(task -> {
-                    NanoleafPanelAuthCollection collection = task.getResult().toObject(NanoleafPanelAuthCollection.class);
-                    for(NanoleafPanelIntegrationAuth auth : collection.getPanelAuths()) {
-                        if(auth.getUid().equals(id)) {
-                            callback.apply(auth);
-                            return;
-                        }
+        getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status) -> {
+            if(!status.success) {
+                callback.apply(null, new WattsCallbackStatus(status.message));
+                return;
+            }
+
+            NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth;
+            if(collection != null) {
+                for(NanoleafPanelIntegrationAuth panel : collection.getPanelAuths()) {
+                    if(panel.getUid().equals(id)) {
+                        callback.apply(panel);
+                        return;
                     }
-                    callback.apply(null, new WattsCallbackStatus("NanoleafPanelIntegrationAuth with id does not exist: " + id));
-                })
-                .addOnFailureListener(task -> {
-                    callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-                });
+                }
+            }
+            callback.apply(null, new WattsCallbackStatus("NanoleafPanelIntegrationAuth with id does not exist: " + id));
+        });
     }
 
     public void getUserIntegrations(WattsCallback<List<IntegrationType>> callback) {
@@ -129,6 +151,10 @@ public class UserManager {
     }
 
     public void deleteUser(Context context, WattsCallback<Void> callback){
+        clearIntegrationAuthCache();
+        LightRepository.getInstance().clearLightStates();
+        NanoleafDiscoveryCache.getInstance().clear();
+
         // Delete the user account from the Firestore
         this.deleteUserEntities((var, status) -> {
             if(!status.success) {
@@ -163,6 +189,9 @@ public class UserManager {
     }
 
     public Task<Void> signOut(Context context){
+        clearIntegrationAuthCache();
+        LightRepository.getInstance().clearLightStates();
+        NanoleafDiscoveryCache.getInstance().clear();
         return userRepository.signOut(context);
     }
 
@@ -175,41 +204,139 @@ public class UserManager {
     }
 
     public Task<Void> setAuthPropString(String prop, String value, IntegrationType type) {
-        return userAuthRepository.updatePropertyString(prop, value, type);
+        // listeners are notified once the refreshed auth shows the credentials actually changed
+        integrationAuthCache.remove(type);
+        return userAuthRepository.updatePropertyString(prop, value, type)
+                .addOnCompleteListener(task -> integrationAuthCache.remove(type));
     }
 
-    private void deleteUserEntities(WattsCallback<Void> callback) {
-        RoomManager.getInstance().deleteRoomsForUser((var, status) -> {
-            if(!status.success) {
-                Log.e(LOG_TAG, status.message);
-                callback.apply(null, new WattsCallbackStatus(status.message));
+    /**
+     * Register a listener that runs whenever cached integration credentials change, not when
+     * they are first cached or when a write leaves them as they were
+     */
+    public void addIntegrationAuthChangeListener(Runnable listener) {
+        integrationAuthChangeListeners.add(listener);
+    }
+
+    public synchronized void clearIntegrationAuthCache() {
+        for(ListenerRegistration registration : integrationAuthListeners.values())
+            registration.remove();
+        integrationAuthListeners.clear();
+        integrationAuthCache.clear();
+        integrationAuthCacheUserId = null;
+
+        boolean hadCredentials = !integrationCredentials.isEmpty();
+        integrationCredentials.clear();
+        if(hadCredentials)
+            notifyIntegrationAuthChanged();
+    }
+
+    private IntegrationAuth getCachedIntegrationAuth(IntegrationType type) {
+        FirebaseUser user = getCurrentUser();
+        if(user == null || !user.getUid().equals(integrationAuthCacheUserId))
+            return null;
+        return integrationAuthCache.get(type);
+    }
+
+    private synchronized void cacheIntegrationAuth(IntegrationType type, IntegrationAuth auth) {
+        FirebaseUser user = getCurrentUser();
+        if(user == null || auth == null)
+            return;
+
+        if(!user.getUid().equals(integrationAuthCacheUserId)) {
+            clearIntegrationAuthCache();
+            integrationAuthCacheUserId = user.getUid();
+        }
+
+        if(updateCachedIntegrationAuth(type, auth))
+            notifyIntegrationAuthChanged();
+        watchIntegrationAuth(type);
+    }
+
+    // Returns whether the credentials differ from the ones last cached, a first fill is not a change
+    private synchronized boolean updateCachedIntegrationAuth(IntegrationType type, IntegrationAuth auth) {
+        integrationAuthCache.put(type, auth);
+        String credentials = getCredentials(auth);
+        String previous = integrationCredentials.put(type, credentials);
+        return previous != null && !previous.equals(credentials);
+    }
+
+    private synchronized boolean removeCachedIntegrationAuth(IntegrationType type) {
+        integrationAuthCache.remove(type);
+        return integrationCredentials.remove(type) != null;
+    }
+
+    // The parts of the auth that requests and compiled scene plans are built from
+    private String getCredentials(IntegrationAuth auth) {
+        StringBuilder ret = new StringBuilder();
+        if(auth instanceof PhillipsHueIntegrationAuth) {
+            PhillipsHueIntegrationAuth hueAuth = (PhillipsHueIntegrationAuth) auth;
+            ret.append(hueAuth.getAccessToken()).append('|').append(hueAuth.getUsername());
+        }
+        else if(auth instanceof NanoleafPanelAuthCollection && ((NanoleafPanelAuthCollection) auth).getPanelAuths() != null) {
+            for(NanoleafPanelIntegrationAuth panel : ((NanoleafPanelAuthCollection) auth).getPanelAuths())
+                ret.append(panel.getBaseUrl()).append('|').append(panel.getAuthToken()).append(';');
+        }
+        return ret.toString();
+    }
+
+    private void notifyIntegrationAuthChanged() {
+        for(Runnable listener : integrationAuthChangeListeners)
+            listener.run();
+    }
+
+    // Keeps the cached credentials in sync with changes made outside of this manager
+    private void watchIntegrationAuth(IntegrationType type) {
+        if(integrationAuthListeners.containsKey(type))
+            return;
+
+        Class<? extends IntegrationAuth> authClass = getIntegrationAuthClass(type);
+        ListenerRegistration registration = userAuthRepository.addIntegrationAuthListener(type, (snapshot, e) -> {
+            if(e != null) {
+                // the credentials are unknown rather than changed, the next read refills and compares them
+                Log.w(LOG_TAG, "Integration auth listener failed: " + e.getMessage());
+                integrationAuthCache.remove(type);
+                integrationAuthListeners.remove(type);
                 return;
             }
 
-            IntegrationSceneManager.getInstance().deleteUserScenes((var1, status1) -> {
-                if(!status1.success) {
-                    Log.e(LOG_TAG, status1.message);
-                    callback.apply(null, new WattsCallbackStatus(status1.message));
-                    return;
-                }
+            if(snapshot == null || !snapshot.exists()) {
+                if(removeCachedIntegrationAuth(type))
+                    notifyIntegrationAuthChanged();
+                return;
+            }
 
-                SceneManager.getInstance().deleteUserScenes((var11, status11) -> {
-                    if(!status11.success) {
-                        Log.e(LOG_TAG, status11.message);
-                        callback.apply(null, new WattsCallbackStatus(status11.message));
-                        return;
-                    }
+            // the first snapshot and echoes of our own writes usually leave the credentials as they were
+            IntegrationAuth auth = snapshot.toObject(authClass);
+            if(auth != null && updateCachedIntegrationAuth(type, auth))
+                notifyIntegrationAuthChanged();
+        });
+        integrationAuthListeners.put(type, registration);
+    }
 
-                    LightManager.getInstance().deleteLightsForUser((var111, status111) -> {
-                        if(!status111.success) {
-                            Log.e(LOG_TAG, status111.message);
-                            callback.apply(null, new WattsCallbackStatus(status111.message));
-                        }
+    private Class<? extends IntegrationAuth> getIntegrationAuthClass(IntegrationType type) {
+        switch(type) {
+            case PHILLIPS_HUE:
+                return PhillipsHueIntegrationAuth.class;
+            case NANOLEAF:
+                return NanoleafPanelAuthCollection.class;
+            default:
+                return null;
+        }
+    }
 
-                        callback.apply(null);
-                    });
-                });
-            });
+    private void deleteUserEntities(WattsCallback<Void> callback) {
+        // Collections don't depend on each other, so delete them all at once
+        CompletableFuture<Void> deletions = CompletableFuture.allOf(
+                FutureUtil.fromCallback(cb -> RoomManager.getInstance().deleteRoomsForUser(cb)),
+                FutureUtil.fromCallback(cb -> IntegrationSceneManager.getInstance().deleteUserScenes(cb)),
+                FutureUtil.fromCallback(cb -> SceneManager.getInstance().deleteUserScenes(cb)),
+                FutureUtil.fromCallback(cb -> LightManager.getInstance().deleteLightsForUser(cb)));
+
+        FutureUtil.toCallback(deletions, (var, status) -> {
+            if(!status.success)
+                Log.e(LOG_TAG, status.message);
+            callback.apply(null, status);
         });
     }
 
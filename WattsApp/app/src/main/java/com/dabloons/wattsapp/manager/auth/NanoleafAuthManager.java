@@ -1,22 +1,42 @@
 package com.dabloons.wattsapp.manager.auth;
 
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
+import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.manager.LightManager;
 import com.dabloons.wattsapp.manager.UserManager;
-import com.dabloons.wattsapp.model.NetworkService;
 import com.dabloons.wattsapp.model.integration.IntegrationAuth;
 import com.dabloons.wattsapp.model.integration.IntegrationType;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
+import com.dabloons.wattsapp.model.integration.NanoleafPanelDiscoveryRecord;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
+import com.dabloons.wattsapp.repository.NanoleafDiscoveryCache;
 import com.dabloons.wattsapp.service.NanoleafService;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import util.FutureUtil;
 import util.NSDServiceUtil;
 import util.UIMessageUtil;
 import util.WattsCallback;
@@ -30,64 +50,234 @@ public class NanoleafAuthManager {
 
     private NSDServiceUtil nsdServiceUtil = NSDServiceUtil.getInstance();
     private NanoleafService nanoleafService = NanoleafService.getInstance();
+    private NanoleafDiscoveryCache discoveryCache = NanoleafDiscoveryCache.getInstance();
 
     private UserManager userManager = UserManager.getInstance();
     private LightManager lightManager = LightManager.getInstance();
 
     private final String NANOLEAF_MDNS_SERVICE = "_nanoleafapi._tcp.";
-    private final String URL_FORMAT = "http://%s:%s/api/v1/";
+    private final String API_PATH = "api/v1/";
 
     private final int DISCOVERY_SEARCH_TIME_MILLISECONDS = 4000;
+    private final int DISCOVERY_QUIET_TIME_MILLISECONDS = 300;
+    private final long NANOLEAF_PAIRING_DEADLINE_MS = Long.parseLong(WattsApplication.getResourceString(R.string.nanoleaf_pairing_deadline_ms));
+    private final long NANOLEAF_PAIRING_RETRY_INTERVAL_MS = Long.parseLong(WattsApplication.getResourceString(R.string.nanoleaf_pairing_retry_interval_ms));
+    private final long NANOLEAF_PROBE_TIMEOUT_MS = Long.parseLong(WattsApplication.getResourceString(R.string.nanoleaf_probe_timeout_ms));
 
     public NanoleafAuthManager() {
 
     }
 
-    public void discoverNanoleafPanelsOnNetwork(WattsCallback<NetworkService> onDeviceFound,
+    /**
+     * Discover Nanoleaf panels on the network. Discovery ends early once every panel already
+     * connected to the account has been found and no new panel has shown up for a short quiet
+     * period, otherwise it runs for the full search time.
+     * @param onDeviceFound Called with each panel as soon as it is resolved
+     * @param onFinish Called once with every panel found
+     */
+    public void discoverNanoleafPanelsOnNetwork(WattsCallback<NanoleafPanelIntegrationAuth> onDeviceFound,
                                                 WattsCallback<List<NanoleafPanelIntegrationAuth>> onFinish) {
-        List<NanoleafPanelIntegrationAuth> nanoleafPanelConnections = new ArrayList<>();
+        DiscoverySession session = new DiscoverySession(onDeviceFound, onFinish);
 
-        // Set timeout of discovery
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                nsdServiceUtil.safeEndNetworkDiscovery((ended, status) -> {
-                    if(!ended)
-                        Log.e(LOG_TAG, "Failed to end network discovery after nanoleaf connection");
-                    else
-                        Log.d(LOG_TAG, "Successfully ended network discovery after nanoleaf connection");
+        userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, (collection, status) -> {
+            Set<String> knownPanelNames = new HashSet<>();
+            if(status.success && collection != null) {
+                for(NanoleafPanelIntegrationAuth auth : ((NanoleafPanelAuthCollection) collection).getPanelAuths())
+                    knownPanelNames.add(auth.getName());
+            }
+            session.setExpectedPanelNames(knownPanelNames);
+        });
 
-                    nsdServiceUtil.waitForAllServicesToResolve((var, status1) -> {
-                        // Call callback here and move getAuthTokenForProps
-                        if(!status.success)
-                            Log.e(LOG_TAG, status1.message);
+        startDiscovery(session);
+    }
 
-                        onFinish.apply(nanoleafPanelConnections, status1);
-                    });
-                });
+    /**
+     * Check that every stored panel still answers at its stored address. Panels that don't are
+     * tried at their last address seen on this device, and the rest are looked for with mDNS.
+     * Stored base urls are rewritten for panels found at a new address.
+     * @param callback Called with the number of panels whose address was rewritten
+     */
+    public void reconnectKnownPanels(WattsCallback<Integer> callback) {
+        userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status) -> {
+            if(!status.success) {
+                callback.apply(null, status);
+                return;
             }
-        }, DISCOVERY_SEARCH_TIME_MILLISECONDS);
+            if(auth == null || ((NanoleafPanelAuthCollection) auth).getPanelAuths() == null) {
+                callback.apply(0);
+                return;
+            }
+
+            NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth;
+            List<NanoleafPanelIntegrationAuth> panels = new ArrayList<>(collection.getPanelAuths());
+            List<CompletableFuture<String>> probes = new ArrayList<>();
+            for(NanoleafPanelIntegrationAuth panel : panels)
+                probes.add(findReachableUrl(panel));
+
+            FutureUtil.allOf(probes).thenAccept(urls -> {
+                Map<String, String> newUrls = new HashMap<>();
+                Set<String> missingPanelNames = new HashSet<>();
+                for(int i = 0; i < panels.size(); i++) {
+                    NanoleafPanelIntegrationAuth panel = panels.get(i);
+                    String url = urls.get(i);
+                    if(url == null)
+                        missingPanelNames.add(panel.getName());
+                    else if(!url.equals(panel.getBaseUrl()))
+                        newUrls.put(panel.getName(), url);
+                }
 
-        // Start to discover panels
+                if(missingPanelNames.isEmpty()) {
+                    saveMovedPanels(collection, newUrls, callback);
+                    return;
+                }
+
+                // only look for the panels that didn't answer, discovery ends as soon as they resolve
+                Log.d(LOG_TAG, "Looking for unreachable nanoleaf panels: " + missingPanelNames);
+                DiscoverySession session = new DiscoverySession((panel, status1) -> { }, (found, status1) -> {
+                    for(NanoleafPanelIntegrationAuth panel : found) {
+                        if(missingPanelNames.contains(panel.getName()))
+                            newUrls.put(panel.getName(), panel.getBaseUrl());
+                    }
+                    saveMovedPanels(collection, newUrls, callback);
+                });
+                session.setExpectedPanelNames(missingPanelNames);
+                startDiscovery(session);
+            });
+        });
+    }
+
+    private void startDiscovery(DiscoverySession session) {
+        session.start();
         this.nsdServiceUtil.discoverService(NANOLEAF_MDNS_SERVICE, (service, status) -> {
-            onDeviceFound.apply(service, status);
+            if(!status.success) {
+                Log.e(LOG_TAG, "Issue discovering device: " + status.message);
+                return;
+            }
+
+            // url: http://{host}:{port}/api/v1/
+            String host = service.getHost().getHostAddress();
+            String url = buildPanelUrl(host, service.getPort());
+            if(url == null) {
+                Log.w(LOG_TAG, "Skipping nanoleaf panel " + service.getName() + " with unusable address " + host);
+                return;
+            }
+            discoveryCache.recordSeen(service.getName(), host, service.getPort());
+
+            session.onPanelFound(new NanoleafPanelIntegrationAuth(service.getName(), url, null));
+        });
+    }
+
+    // Probes the stored address and the last address seen on this device at the same time, preferring the stored one
+    private CompletableFuture<String> findReachableUrl(NanoleafPanelIntegrationAuth panel) {
+        CompletableFuture<Boolean> stored = probePanel(panel.getName(), panel.getBaseUrl(), panel.getAuthToken());
+
+        NanoleafPanelDiscoveryRecord record = discoveryCache.getRecord(panel.getName());
+        String cachedUrl = record == null ? null : buildPanelUrl(record.getHost(), record.getPort());
+        if(cachedUrl == null || cachedUrl.equals(panel.getBaseUrl()))
+            return stored.thenApply(reached -> reached ? panel.getBaseUrl() : null);
+
+        CompletableFuture<Boolean> cached = probePanel(panel.getName(), cachedUrl, panel.getAuthToken());
+        return stored.thenCombine(cached, (storedReached, cachedReached) -> {
+            if(storedReached)
+                return panel.getBaseUrl();
+            return cachedReached ? cachedUrl : null;
+        });
+    }
+
+    /**
+     * Build a panel's base url, bracketing IPv6 hosts. Returns null for addresses a url can't hold,
+     * like link-local IPv6 addresses that need an interface scope.
+     */
+    private String buildPanelUrl(String host, int port) {
+        if(host == null || host.contains("%"))
+            return null;
+
+        try {
+            return new HttpUrl.Builder()
+                    .scheme("http")
+                    .host(host)
+                    .port(port)
+                    .addPathSegments(API_PATH)
+                    .build()
+                    .toString();
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+    }
 
-            // url: http://{hostName}:{port}/api/v1/
-            String url = String.format(URL_FORMAT,
-                    service.getHost().getHostName(), service.getPort());
+    private CompletableFuture<Boolean> probePanel(String name, String url, String authToken) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        HttpUrl httpUrl = url == null ? null : HttpUrl.parse(url);
+        if(httpUrl == null || authToken == null) {
+            future.complete(false);
+            return future;
+        }
+
+        // only the panel that issued the token answers successfully, another device now at this address won't
+        nanoleafService.getLightState(new NanoleafPanelIntegrationAuth(name, url, authToken), new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                future.complete(false);
+            }
 
-            NanoleafPanelIntegrationAuth auth = new NanoleafPanelIntegrationAuth(service.getName(), url, null);
-            nanoleafPanelConnections.add(auth);
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                boolean reached = response.isSuccessful();
+                response.close();
+                if(reached)
+                    discoveryCache.recordSeen(name, httpUrl.host(), httpUrl.port());
+                future.complete(reached);
+            }
         });
+
+        return FutureUtil.withTimeout(future, NANOLEAF_PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .exceptionally(throwable -> false);
     }
 
+    private void saveMovedPanels(NanoleafPanelAuthCollection collection, Map<String, String> newUrls,
+                                 WattsCallback<Integer> callback) {
+        if(newUrls.isEmpty()) {
+            callback.apply(0);
+            return;
+        }
+
+        // the cached collection is only replaced once the new addresses are saved
+        List<NanoleafPanelIntegrationAuth> panels = new ArrayList<>();
+        for(NanoleafPanelIntegrationAuth panel : collection.getPanelAuths()) {
+            String url = newUrls.get(panel.getName());
+            if(url == null) {
+                panels.add(panel);
+                continue;
+            }
+
+            Log.i(LOG_TAG, String.format("Nanoleaf panel %s moved from %s to %s", panel.getName(), panel.getBaseUrl(), url));
+            panels.add(panel.withBaseUrl(url));
+        }
+        NanoleafPanelAuthCollection updated = new NanoleafPanelAuthCollection(panels);
+        updated.setUid(collection.getUid());
+
+        userManager.addIntegrationAuthData(IntegrationType.NANOLEAF, updated, (var, status) -> {
+            if(!status.success)
+                Log.e(LOG_TAG, status.message);
+            callback.apply(newUrls.size(), status);
+        });
+    }
 
     public void cancelDiscovery() {
         nsdServiceUtil.forceEndNetworkDiscovery();
     }
 
-    public void connectToPanels(List<NanoleafPanelIntegrationAuth> panels, WattsCallback<Integer> callback) {
-        getAuthTokenForProps(panels, 0, (auths, status) -> {
+    /**
+     * Pair with every panel at once, retrying each until it is paired or the pairing deadline
+     * passes, then save the paired panels to the user's Nanoleaf integration
+     * @param panels Discovered panels to pair with
+     * @param onPanelPaired Called for each panel as soon as it is paired or has given up
+     * @param callback Called with the number of panels added once all are done
+     */
+    public void connectToPanels(List<NanoleafPanelIntegrationAuth> panels,
+                                WattsCallback<NanoleafPanelIntegrationAuth> onPanelPaired,
+                                WattsCallback<Integer> callback) {
+        getAuthTokenForProps(panels, onPanelPaired, (auths, status) -> {
             if(!status.success) {
                 Log.e(LOG_TAG, status.message);
                 callback.apply(null, status);
@@ -99,23 +289,52 @@ public class NanoleafAuthManager {
     }
 
     private void getAuthTokenForProps(List<NanoleafPanelIntegrationAuth> authProps,
-                                      int index, WattsCallback<List<NanoleafPanelIntegrationAuth>> callback) {
-        if(index >= authProps.size()) {
+                                      WattsCallback<NanoleafPanelIntegrationAuth> onPanelDone,
+                                      WattsCallback<List<NanoleafPanelIntegrationAuth>> callback) {
+        if(authProps.isEmpty()) {
             callback.apply(authProps);
             return;
         }
 
-        NanoleafPanelIntegrationAuth auth = authProps.get(index);
+        // panels only accept pairing for a short time after the power button is held, so all are tried at once
+        long deadline = SystemClock.elapsedRealtime() + NANOLEAF_PAIRING_DEADLINE_MS;
+        Timer retryTimer = new Timer();
+        AtomicInteger remaining = new AtomicInteger(authProps.size());
+        for(NanoleafPanelIntegrationAuth auth : authProps) {
+            requestAuthToken(auth, deadline, retryTimer, 1, (var, status) -> {
+                onPanelDone.apply(auth, status);
+                if(remaining.decrementAndGet() == 0) {
+                    retryTimer.cancel();
+                    callback.apply(authProps);
+                }
+            });
+        }
+    }
+
+    private void requestAuthToken(NanoleafPanelIntegrationAuth auth, long deadline, Timer retryTimer,
+                                  int attempt, WattsCallback<Void> onDone) {
         nanoleafService.addNanoleafUser(auth, (authToken, status) -> {
-            if(!status.success) {
-                Log.e(LOG_TAG, status.message);
-                UIMessageUtil.showShortToastMessage(WattsApplication.getAppContext(), status.message);
-            }
-            else
+            if(status.success) {
+                Log.d(LOG_TAG, String.format("Paired with nanoleaf panel %s after %d attempts", auth.getName(), attempt));
                 auth.setAuthToken(authToken);
+                onDone.apply(null);
+                return;
+            }
+
+            if(deadline - SystemClock.elapsedRealtime() > NANOLEAF_PAIRING_RETRY_INTERVAL_MS) {
+                Log.d(LOG_TAG, String.format("Pairing attempt %d failed, retrying: %s", attempt, status.message));
+                retryTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        requestAuthToken(auth, deadline, retryTimer, attempt + 1, onDone);
+                    }
+                }, NANOLEAF_PAIRING_RETRY_INTERVAL_MS);
+                return;
+            }
 
-            int nextInd = index+1;
-            getAuthTokenForProps(authProps, nextInd, callback);
+            Log.e(LOG_TAG, status.message);
+            UIMessageUtil.showShortToastMessage(WattsApplication.getAppContext(), status.message);
+            onDone.apply(null, status);
         });
     }
 
@@ -167,6 +386,110 @@ public class NanoleafAuthManager {
         return finalAuths;
     }
 
+    private class DiscoverySession {
+        private final WattsCallback<NanoleafPanelIntegrationAuth> onDeviceFound;
+        private final WattsCallback<List<NanoleafPanelIntegrationAuth>> onFinish;
+
+        private final Timer timer = new Timer();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private final long startTime = SystemClock.elapsedRealtime();
+
+        // guarded by this
+        private final Map<String, NanoleafPanelIntegrationAuth> panels = new LinkedHashMap<>();
+        private Set<String> expectedPanelNames;
+        private TimerTask quietTask;
+
+        DiscoverySession(WattsCallback<NanoleafPanelIntegrationAuth> onDeviceFound,
+                         WattsCallback<List<NanoleafPanelIntegrationAuth>> onFinish) {
+            this.onDeviceFound = onDeviceFound;
+            this.onFinish = onFinish;
+        }
+
+        void start() {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            }, DISCOVERY_SEARCH_TIME_MILLISECONDS);
+        }
+
+        void setExpectedPanelNames(Set<String> names) {
+            synchronized(this) {
+                expectedPanelNames = names;
+            }
+            scheduleQuietCheck();
+        }
+
+        void onPanelFound(NanoleafPanelIntegrationAuth panel) {
+            if(finished.get())
+                return;
+
+            synchronized(this) {
+                // the same panel can be resolved more than once during discovery
+                if(panels.containsKey(panel.getName()))
+                    return;
+                panels.put(panel.getName(), panel);
+            }
+
+            onDeviceFound.apply(panel);
+            scheduleQuietCheck();
+        }
+
+        // every new panel restarts the quiet period
+        private void scheduleQuietCheck() {
+            synchronized(this) {
+                if(finished.get())
+                    return;
+                if(quietTask != null)
+                    quietTask.cancel();
+                if(!allExpectedPanelsFound())
+                    return;
+
+                quietTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                };
+                timer.schedule(quietTask, DISCOVERY_QUIET_TIME_MILLISECONDS);
+            }
+        }
+
+        // guarded by this
+        private boolean allExpectedPanelsFound() {
+            return expectedPanelNames != null && !expectedPanelNames.isEmpty()
+                    && panels.keySet().containsAll(expectedPanelNames);
+        }
+
+        private void finish() {
+            synchronized(this) {
+                if(!finished.compareAndSet(false, true))
+                    return;
+                timer.cancel();
+            }
+
+            nsdServiceUtil.waitForAllServicesToResolve((var, status) -> {
+                nsdServiceUtil.removeDiscoveryCallback(NANOLEAF_MDNS_SERVICE);
+                nsdServiceUtil.safeEndNetworkDiscovery((ended, status1) -> {
+                    if(!ended)
+                        Log.e(LOG_TAG, "Failed to end network discovery after nanoleaf connection");
+                    else
+                        Log.d(LOG_TAG, "Successfully ended network discovery after nanoleaf connection");
+                });
+
+                List<NanoleafPanelIntegrationAuth> ret;
+                synchronized(this) {
+                    ret = new ArrayList<>(panels.values());
+                }
+                Log.d(LOG_TAG, String.format("Nanoleaf discovery found %d panels in %dms",
+                        ret.size(), SystemClock.elapsedRealtime() - startTime));
+
+                onFinish.apply(ret, status);
+            });
+        }
+    }
+
     public static NanoleafAuthManager getInstance() {
         NanoleafAuthManager result = instance;
         if (result != null) {
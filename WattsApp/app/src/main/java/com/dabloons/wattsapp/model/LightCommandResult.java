@@ -0,0 +1,44 @@
+package com.dabloons.wattsapp.model;
+
+public class LightCommandResult {
+
+    private final String lightId;
+    private final String lightName;
+    private final boolean success;
+    private final String message;
+    private final long latencyMillis;
+
+    public LightCommandResult(String lightId, String lightName, boolean success, String message, long latencyMillis) {
+        this.lightId = lightId;
+        this.lightName = lightName;
+        this.success = success;
+        this.message = message;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public String getLightId() {
+        return lightId;
+    }
+
+    public String getLightName() {
+        return lightName;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s in %dms%s", lightName, success ? "ok" : "failed",
+                latencyMillis, message == null || message.isEmpty() ? "" : " (" + message + ")");
+    }
+}
@@ -0,0 +1,45 @@
+package com.dabloons.wattsapp.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of reconciling the lights reported by an integration against the stored lights
+ */
+public class LightSyncDiff {
+
+    private final List<Light> inserted = new ArrayList<>();
+    private final List<Light> updated = new ArrayList<>();
+    private final List<Light> deleted = new ArrayList<>();
+    private final List<Light> unchanged = new ArrayList<>();
+
+    public List<Light> getInserted() {
+        return inserted;
+    }
+
+    public List<Light> getUpdated() {
+        return updated;
+    }
+
+    public List<Light> getDeleted() {
+        return deleted;
+    }
+
+    public List<Light> getUnchanged() {
+        return unchanged;
+    }
+
+    public int getWriteCount() {
+        return inserted.size() + updated.size() + deleted.size();
+    }
+
+    public boolean hasChanges() {
+        return getWriteCount() > 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d inserted, %d updated, %d deleted, %d unchanged",
+                inserted.size(), updated.size(), deleted.size(), unchanged.size());
+    }
+}
@@ -0,0 +1,46 @@
+package com.dabloons.wattsapp.model;
+
+import com.dabloons.wattsapp.model.integration.IntegrationType;
+
+public class SceneActivationResult {
+
+    private final IntegrationType integrationType;
+    private final String sceneName;
+    private final boolean success;
+    private final String message;
+    private final long latencyMillis;
+
+    public SceneActivationResult(IntegrationType integrationType, String sceneName, boolean success, String message, long latencyMillis) {
+        this.integrationType = integrationType;
+        this.sceneName = sceneName;
+        this.success = success;
+        this.message = message;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public IntegrationType getIntegrationType() {
+        return integrationType;
+    }
+
+    public String getSceneName() {
+        return sceneName;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s: %s in %dms%s", integrationType, sceneName, success ? "ok" : "failed",
+                latencyMillis, message == null || message.isEmpty() ? "" : " (" + message + ")");
+    }
+}
@@ -0,0 +1,53 @@
+package com.dabloons.wattsapp.model.integration;
+
+/**
+ * Where a Nanoleaf panel was last seen on the local network
+ */
+public class NanoleafPanelDiscoveryRecord {
+
+    private String name;
+    private String host;
+    private int port;
+    private long lastSeenMillis;
+
+    public NanoleafPanelDiscoveryRecord(String name, String host, int port, long lastSeenMillis) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.lastSeenMillis = lastSeenMillis;
+    }
+
+    public NanoleafPanelDiscoveryRecord() { }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public long getLastSeenMillis() {
+        return lastSeenMillis;
+    }
+
+    public void setLastSeenMillis(long lastSeenMillis) {
+        this.lastSeenMillis = lastSeenMillis;
+    }
+}
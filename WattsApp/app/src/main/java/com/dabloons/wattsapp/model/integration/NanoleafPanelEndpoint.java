@@ -0,0 +1,40 @@
+package com.dabloons.wattsapp.model.integration;
+
+/**
+ * Immutable address of a single Nanoleaf panel. Requests are built from this instead of
+ * shared mutable state so commands to different panels can run concurrently.
+ */
+public final class NanoleafPanelEndpoint {
+
+    private final String baseUrl;
+    private final String authToken;
+
+    public NanoleafPanelEndpoint(String baseUrl, String authToken) {
+        this.baseUrl = baseUrl;
+        this.authToken = authToken;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getAuthToken() {
+        return authToken;
+    }
+
+    public String getNewUserPath() {
+        return "new";
+    }
+
+    public String getStatePath() {
+        return String.format("%s/state", authToken);
+    }
+
+    public String getEffectsPath() {
+        return String.format("%s/effects", authToken);
+    }
+
+    public String getEffectsListPath() {
+        return String.format("%s/effects/effectsList", authToken);
+    }
+}
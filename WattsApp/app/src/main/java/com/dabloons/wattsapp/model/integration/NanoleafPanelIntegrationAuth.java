@@ -16,6 +16,9 @@ public class NanoleafPanelIntegrationAuth extends IntegrationAuth implements Par
     @Exclude
     public boolean isSelected;
 
+    @Exclude
+    private volatile NanoleafPanelEndpoint endpoint;
+
     public NanoleafPanelIntegrationAuth(String name, String baseUrl, String authToken) {
         super(UUID.randomUUID().toString(), IntegrationType.NANOLEAF);
         this.name = name;
@@ -34,6 +37,16 @@ public class NanoleafPanelIntegrationAuth extends IntegrationAuth implements Par
         isSelected = in.readByte() != 0;
     }
 
+    /**
+     * A copy of this panel at another address, this one is left as it is
+     */
+    public NanoleafPanelIntegrationAuth withBaseUrl(String baseUrl) {
+        NanoleafPanelIntegrationAuth ret = new NanoleafPanelIntegrationAuth(name, baseUrl, authToken);
+        ret.setUid(getUid());
+        ret.isSelected = isSelected;
+        return ret;
+    }
+
     public String getName() {
         return name;
     }
@@ -48,6 +61,7 @@ public class NanoleafPanelIntegrationAuth extends IntegrationAuth implements Par
 
     public void setBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        this.endpoint = null;
     }
 
     public String getAuthToken() {
@@ -56,6 +70,17 @@ public class NanoleafPanelIntegrationAuth extends IntegrationAuth implements Par
 
     public void setAuthToken(String authToken) {
         this.authToken = authToken;
+        this.endpoint = null;
+    }
+
+    @Exclude
+    public NanoleafPanelEndpoint getEndpoint() {
+        NanoleafPanelEndpoint result = endpoint;
+        if(result == null) {
+            result = new NanoleafPanelEndpoint(baseUrl, authToken);
+            endpoint = result;
+        }
+        return result;
     }
 
     @Exclude
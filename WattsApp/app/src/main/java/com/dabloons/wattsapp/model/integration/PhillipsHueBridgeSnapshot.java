@@ -0,0 +1,128 @@
+package com.dabloons.wattsapp.model.integration;
+
+import androidx.annotation.Nullable;
+
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightSyncDiff;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Everything read from a single fetch of the bridge's full configuration
+ */
+public class PhillipsHueBridgeSnapshot {
+
+    private final List<Light> lights = new ArrayList<>();
+    private final Set<String> unreachableLightIds = new HashSet<>();
+    private final List<Group> groups = new ArrayList<>();
+    private final List<IntegrationScene> scenes = new ArrayList<>();
+
+    private String bridgeName;
+    private String apiVersion;
+
+    @Nullable
+    private JsonObject capabilities;
+
+    // set once the snapshot's lights have been synced to the database
+    @Nullable
+    private LightSyncDiff lightSyncDiff;
+
+    public List<Light> getLights() {
+        return lights;
+    }
+
+    public Set<String> getUnreachableLightIds() {
+        return unreachableLightIds;
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    public List<IntegrationScene> getScenes() {
+        return scenes;
+    }
+
+    public String getBridgeName() {
+        return bridgeName;
+    }
+
+    public void setBridgeName(String bridgeName) {
+        this.bridgeName = bridgeName;
+    }
+
+    public String getApiVersion() {
+        return apiVersion;
+    }
+
+    public void setApiVersion(String apiVersion) {
+        this.apiVersion = apiVersion;
+    }
+
+    @Nullable
+    public JsonObject getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(@Nullable JsonObject capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    @Nullable
+    public LightSyncDiff getLightSyncDiff() {
+        return lightSyncDiff;
+    }
+
+    public void setLightSyncDiff(@Nullable LightSyncDiff lightSyncDiff) {
+        this.lightSyncDiff = lightSyncDiff;
+    }
+
+    @Nullable
+    public Group getGroup(String integrationId) {
+        for(Group group : groups) {
+            if(group.getIntegrationId().equals(integrationId))
+                return group;
+        }
+        return null;
+    }
+
+    public static class Group {
+        private final String integrationId;
+        private final String name;
+        private final List<String> lightIds;
+        private final boolean anyOn;
+        private final boolean allOn;
+
+        public Group(String integrationId, String name, List<String> lightIds, boolean anyOn, boolean allOn) {
+            this.integrationId = integrationId;
+            this.name = name;
+            this.lightIds = lightIds;
+            this.anyOn = anyOn;
+            this.allOn = allOn;
+        }
+
+        public String getIntegrationId() {
+            return integrationId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getLightIds() {
+            return lightIds;
+        }
+
+        public boolean isAnyOn() {
+            return anyOn;
+        }
+
+        public boolean isAllOn() {
+            return allOn;
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import util.FirestoreUtil;
-import util.RepositoryUtil;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
 
@@ -32,6 +31,8 @@ public class IntegrationSceneRepository {
     private static volatile IntegrationSceneRepository instance;
 
     private final String INTEGRATION_SCENES_COLLECTION_NAME = WattsApplication.getResourceString(R.string.collection_integration_scenes);
+    private final String USER_ID_FIELD = WattsApplication.getResourceString(R.string.field_userId);
+    private final String INTEGRATION_TYPE_FIELD = WattsApplication.getResourceString(R.string.field_integration_type);
 
 
     public void createIntegrationScene(IntegrationType type, String name, String integrationId,
@@ -72,8 +73,11 @@ public class IntegrationSceneRepository {
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return;
 
-        getIntegrationSceneCollection().get().addOnCompleteListener(task -> {
-            if(!task.isComplete()) {
+        getIntegrationSceneCollection()
+                .whereEqualTo(USER_ID_FIELD, user.getUid())
+                .whereEqualTo(INTEGRATION_TYPE_FIELD, type.name())
+                .get().addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
                 String message = "Failed to get integration secenes collection";
                 Log.e(LOG_TAG, message);
                 callback.apply(null, new WattsCallbackStatus(message));
@@ -82,10 +86,7 @@ public class IntegrationSceneRepository {
 
             List<IntegrationScene> ret = new ArrayList<>();
             for(QueryDocumentSnapshot document : task.getResult()) {
-                IntegrationType it = RepositoryUtil.stringToIntegrationType((String)document.get("integrationType"));
-                if(it != null && it == type)
-                    ret.add(document.toObject(IntegrationScene.class));
-
+                ret.add(document.toObject(IntegrationScene.class));
             }
             callback.apply(ret);
         });
@@ -7,23 +7,31 @@ import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.manager.UserManager;
 import com.dabloons.wattsapp.model.Light;
 import com.dabloons.wattsapp.model.LightState;
+import com.dabloons.wattsapp.model.LightSyncDiff;
+import com.dabloons.wattsapp.model.Room;
 import com.dabloons.wattsapp.model.integration.IntegrationType;
 import com.dabloons.wattsapp.service.PhillipsHueService;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.firestore.WriteBatch;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import util.FirestoreUtil;
-import util.RepositoryUtil;
 import util.WattsCallback;
 import util.WattsCallbackStatus;
 
@@ -37,6 +45,9 @@ public final class LightRepository {
     private final String USER_ID_FIELD = WattsApplication.getResourceString(R.string.field_userId);
     private final String LIGHT_ID = WattsApplication.getResourceString(R.string.field_uid);
     private final String INTEGRATION_TYPE_FIELD = WattsApplication.getResourceString(R.string.field_integration_type);
+    private final long LIGHT_STATE_WRITE_WINDOW_MS = Long.parseLong(WattsApplication.getResourceString(R.string.light_state_write_window_ms));
+
+    private final LightStateWriteBuffer lightStateWriteBuffer = new LightStateWriteBuffer(getLightCollection(), LIGHT_STATE_WRITE_WINDOW_MS);
 
     // Create User in Firestore
     public Task<Void> createLight(String integrationId, IntegrationType type, String name, LightState lightState) {
@@ -53,6 +64,12 @@ public final class LightRepository {
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return null;
 
+        // whole documents are written, a buffered older state must not land on top of them
+        List<String> lightUids = new ArrayList<>();
+        for(Light light : lights)
+            lightUids.add(light.getUid());
+        lightStateWriteBuffer.evict(lightUids);
+
         WriteBatch batch = FirebaseFirestore.getInstance().batch();
         for(Light light : lights) {
             DocumentReference ref = getLightCollection().document(light.getUid());
@@ -61,31 +78,138 @@ public final class LightRepository {
         return batch.commit();
     }
 
+    /**
+     * Write only the lights that changed during a sync, in batches no larger than Firestore allows.
+     * Deleted lights are also removed from the rooms that contain them.
+     */
+    public Task<Void> applyLightSyncDiff(LightSyncDiff diff) {
+        FirebaseUser user = UserManager.getInstance().getCurrentUser();
+        if(user == null) return Tasks.forException(new Exception("No user signed in"));
+
+        if(diff.getDeleted().isEmpty())
+            return writeLightSyncDiff(diff, new ArrayList<>());
+
+        // a light is only deleted along with its room references, so rooms never point at missing lights
+        TaskCompletionSource<List<Room>> rooms = new TaskCompletionSource<>();
+        RoomRepository.getInstance().getUserDefinedRooms((result, status) -> {
+            if(status.success)
+                rooms.setResult(result);
+            else
+                rooms.setException(new Exception(status.message));
+        });
+
+        return rooms.getTask().continueWithTask(task -> {
+            if(!task.isSuccessful())
+                return Tasks.forException(task.getException());
+            return writeLightSyncDiff(diff, task.getResult());
+        });
+    }
+
+    private Task<Void> writeLightSyncDiff(LightSyncDiff diff, List<Room> rooms) {
+        List<Task<Void>> commits = new ArrayList<>();
+        WriteBatch batch = FirebaseFirestore.getInstance().batch();
+        int batchSize = 0;
+
+        List<Light> toSet = new ArrayList<>(diff.getInserted());
+        toSet.addAll(diff.getUpdated());
+
+        List<String> writtenUids = new ArrayList<>();
+        for(Light light : toSet)
+            writtenUids.add(light.getUid());
+        for(Light light : diff.getDeleted())
+            writtenUids.add(light.getUid());
+        lightStateWriteBuffer.evict(writtenUids);
+        for(Light light : toSet) {
+            batch.set(getLightCollection().document(light.getUid()), light);
+            if(++batchSize == FirestoreUtil.BATCH_WRITE_LIMIT) {
+                commits.add(batch.commit());
+                batch = FirebaseFirestore.getInstance().batch();
+                batchSize = 0;
+            }
+        }
+
+        Set<String> deletedUids = new HashSet<>();
+        for(Light light : diff.getDeleted()) {
+            deletedUids.add(light.getUid());
+            batch.delete(getLightCollection().document(light.getUid()));
+            if(++batchSize == FirestoreUtil.BATCH_WRITE_LIMIT) {
+                commits.add(batch.commit());
+                batch = FirebaseFirestore.getInstance().batch();
+                batchSize = 0;
+            }
+        }
+
+        for(Room room : rooms) {
+            List<String> removed = new ArrayList<>();
+            for(String lightId : room.getLightIds()) {
+                if(deletedUids.contains(lightId))
+                    removed.add(lightId);
+            }
+            if(removed.isEmpty())
+                continue;
+
+            RoomRepository.getInstance().removeLightsFromRoom(batch, room, removed);
+            if(++batchSize == FirestoreUtil.BATCH_WRITE_LIMIT) {
+                commits.add(batch.commit());
+                batch = FirebaseFirestore.getInstance().batch();
+                batchSize = 0;
+            }
+        }
+
+        if(batchSize > 0)
+            commits.add(batch.commit());
+
+        return Tasks.whenAll(commits);
+    }
+
     public Task<Void> updateLight(Light light) {
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return null;
 
+        lightStateWriteBuffer.evict(Collections.singletonList(light.getUid()));
         return getLightCollection().document(light.getUid()).set(light);
     }
 
+    /**
+     * Queue a write of the light's current state. Writes are merged per light and flushed in batches
+     */
+    public void bufferLightState(Light light) {
+        FirebaseUser user = UserManager.getInstance().getCurrentUser();
+        if(user == null) return;
+
+        lightStateWriteBuffer.put(light.getUid(), light.getLightState());
+    }
+
+    public Task<Void> flushLightStates() {
+        return lightStateWriteBuffer.flush();
+    }
+
+    /**
+     * Drop buffered light state writes, they would fail once the user is signed out
+     */
+    public void clearLightStates() {
+        lightStateWriteBuffer.clear();
+    }
+
     public void getAllLightsForType(IntegrationType type, WattsCallback<List<Light>> callback) {
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return;
 
-        getLightCollection().get().addOnCompleteListener(task -> {
-            if(!task.isComplete()) {
+        Query query = getLightCollection().whereEqualTo(USER_ID_FIELD, user.getUid());
+        if(type != IntegrationType.NONE)
+            query = query.whereEqualTo(INTEGRATION_TYPE_FIELD, type.name());
+
+        query.get().addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
                 String message = "Failed to get lights collection";
                 Log.e(LOG_TAG, message);
+                callback.apply(new ArrayList<>(), new WattsCallbackStatus(message));
+                return;
             }
 
             List<Light> ret = new ArrayList<>();
             for (QueryDocumentSnapshot document : task.getResult()) {
-                boolean userEqual = document.get(USER_ID_FIELD).toString().equals(user.getUid());
-                boolean typeEqual = type == IntegrationType.NONE
-                    || RepositoryUtil.stringToIntegrationType(document.get(INTEGRATION_TYPE_FIELD).toString()) == type;
-
-                if(userEqual && typeEqual)
-                    ret.add(document.toObject(Light.class));
+                ret.add(document.toObject(Light.class));
             }
 
             callback.apply(ret);
@@ -104,17 +228,34 @@ public final class LightRepository {
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return;
 
-        getLightCollection().get().addOnCompleteListener(task -> {
-            if(!task.isComplete()) {
-                String message = "Failed to get lights collection";
+        List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(lightIds));
+        if(uniqueIds.size() == 0) {
+            callback.apply(new ArrayList<>());
+            return;
+        }
+
+        // whereIn is limited in size, so query in chunks concurrently and merge the results
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for(List<String> chunk : FirestoreUtil.chunk(uniqueIds, FirestoreUtil.WHERE_IN_LIMIT)) {
+            queries.add(getLightCollection()
+                    .whereEqualTo(USER_ID_FIELD, user.getUid())
+                    .whereIn(LIGHT_ID, chunk)
+                    .get());
+        }
+
+        Tasks.<QuerySnapshot>whenAllSuccess(queries).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                String message = "Failed to get lights for ids";
                 Log.e(LOG_TAG, message);
+                callback.apply(new ArrayList<>(), new WattsCallbackStatus(message));
+                return;
             }
 
             List<Light> ret = new ArrayList<>();
-            for (QueryDocumentSnapshot document : task.getResult()) {
-                boolean containsLight = lightIds.contains(document.get(LIGHT_ID).toString());
-                if(containsLight)
+            for(QuerySnapshot snapshot : task.getResult()) {
+                for(QueryDocumentSnapshot document : snapshot) {
                     ret.add(document.toObject(Light.class));
+                }
             }
 
             callback.apply(ret);
@@ -0,0 +1,212 @@
+package com.dabloons.wattsapp.repository;
+
+import android.util.Log;
+
+import com.dabloons.wattsapp.model.LightState;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import util.FirestoreUtil;
+
+/**
+ * Buffers light state writes and persists them in batches. Updates to the same light within
+ * the write window are merged so only the latest state is written, as a field level update
+ * of the light's state rather than a rewrite of the whole document.
+ *
+ * Only transient failures are retried, and only a few times. A write that has been superseded
+ * by a newer buffered state or evicted by a whole document write is never retried.
+ */
+public class LightStateWriteBuffer {
+
+    private final String LOG_TAG = "LightStateWriteBuffer";
+
+    private final String LIGHT_STATE_FIELD = "lightState";
+
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final ScheduledExecutorService executor;
+    private final CollectionReference collection;
+    private final long windowMillis;
+
+    // keyed by light uid, guarded by this
+    private Map<String, PendingState> pendingStates;
+    private final Map<String, Long> latestSequence;
+    private long nextSequence;
+    private boolean flushScheduled;
+
+    public LightStateWriteBuffer(CollectionReference collection, long windowMillis) {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.collection = collection;
+        this.windowMillis = windowMillis;
+        this.pendingStates = new LinkedHashMap<>();
+        this.latestSequence = new HashMap<>();
+        this.nextSequence = 0;
+        this.flushScheduled = false;
+    }
+
+    public void put(String lightUid, LightState state) {
+        synchronized(this) {
+            long sequence = nextSequence++;
+            latestSequence.put(lightUid, sequence);
+            pendingStates.put(lightUid, new PendingState(lightUid, toFieldMap(state), sequence));
+            if(flushScheduled)
+                return;
+            flushScheduled = true;
+        }
+
+        executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop buffered states for these lights, call before writing their whole documents so an
+     * older buffered state can't land afterwards and overwrite them
+     */
+    public synchronized void evict(Collection<String> lightUids) {
+        for(String uid : lightUids) {
+            pendingStates.remove(uid);
+            // anything already being written is now stale and must not be retried
+            latestSequence.put(uid, nextSequence++);
+        }
+    }
+
+    /**
+     * Drop everything buffered, e.g. once the user has signed out
+     */
+    public synchronized void clear() {
+        pendingStates.clear();
+        latestSequence.clear();
+    }
+
+    /**
+     * Write all pending states now
+     */
+    public Task<Void> flush() {
+        Map<String, PendingState> toWrite;
+        synchronized(this) {
+            flushScheduled = false;
+            if(pendingStates.isEmpty())
+                return Tasks.forResult(null);
+
+            toWrite = pendingStates;
+            pendingStates = new LinkedHashMap<>();
+        }
+
+        List<Task<Void>> commits = new ArrayList<>();
+        for(List<PendingState> chunk : FirestoreUtil.chunk(new ArrayList<>(toWrite.values()), FirestoreUtil.BATCH_WRITE_LIMIT))
+            commits.add(write(chunk));
+
+        return Tasks.whenAll(commits);
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingStates.size();
+    }
+
+    // Completes once the chunk is written or its failure has been handled, never fails
+    private Task<Void> write(List<PendingState> chunk) {
+        WriteBatch batch = FirebaseFirestore.getInstance().batch();
+        for(PendingState state : chunk)
+            batch.update(collection.document(state.lightUid), LIGHT_STATE_FIELD, state.fields);
+
+        TaskCompletionSource<Void> done = new TaskCompletionSource<>();
+        batch.commit().addOnCompleteListener(task -> {
+            if(task.isSuccessful()) {
+                done.setResult(null);
+                return;
+            }
+
+            Exception e = task.getException();
+            FirebaseFirestoreException.Code code = e instanceof FirebaseFirestoreException
+                    ? ((FirebaseFirestoreException) e).getCode() : FirebaseFirestoreException.Code.UNKNOWN;
+
+            if(code == FirebaseFirestoreException.Code.NOT_FOUND && chunk.size() > 1) {
+                // one deleted light fails the whole batch, write each alone so the others still land
+                List<Task<Void>> singles = new ArrayList<>();
+                for(PendingState state : chunk)
+                    singles.add(write(Collections.singletonList(state)));
+                Tasks.whenAll(singles).addOnCompleteListener(t -> done.setResult(null));
+                return;
+            }
+
+            if(code == FirebaseFirestoreException.Code.UNAVAILABLE || code == FirebaseFirestoreException.Code.DEADLINE_EXCEEDED) {
+                Log.w(LOG_TAG, "Failed to write light states, retrying: " + e.getMessage());
+                requeue(chunk);
+            }
+            else
+                Log.e(LOG_TAG, String.format("Dropping %d light state writes (%s): %s", chunk.size(), code, e == null ? "" : e.getMessage()));
+
+            done.setResult(null);
+        });
+        return done.getTask();
+    }
+
+    // Put back states that failed to write, unless a newer state has been buffered or written since
+    private void requeue(List<PendingState> states) {
+        boolean schedule;
+        synchronized(this) {
+            for(PendingState state : states) {
+                Long latest = latestSequence.get(state.lightUid);
+                if(latest == null || latest != state.sequence)
+                    continue;
+                if(state.attempts + 1 >= MAX_WRITE_ATTEMPTS) {
+                    Log.e(LOG_TAG, "Giving up writing light state for " + state.lightUid);
+                    continue;
+                }
+                pendingStates.put(state.lightUid, state.retry());
+            }
+            schedule = !pendingStates.isEmpty() && !flushScheduled;
+            if(schedule)
+                flushScheduled = true;
+        }
+
+        if(schedule)
+            executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Map<String, Object> toFieldMap(LightState state) {
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("on", state.isOn());
+        ret.put("brightness", state.getBrightness());
+        ret.put("hue", state.getHue());
+        ret.put("saturation", state.getSaturation());
+        return ret;
+    }
+
+    private static class PendingState {
+        final String lightUid;
+        final Map<String, Object> fields;
+        final long sequence;
+        final int attempts;
+
+        PendingState(String lightUid, Map<String, Object> fields, long sequence) {
+            this(lightUid, fields, sequence, 0);
+        }
+
+        private PendingState(String lightUid, Map<String, Object> fields, long sequence, int attempts) {
+            this.lightUid = lightUid;
+            this.fields = fields;
+            this.sequence = sequence;
+            this.attempts = attempts;
+        }
+
+        PendingState retry() {
+            return new PendingState(lightUid, fields, sequence, attempts + 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.dabloons.wattsapp.repository;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.dabloons.wattsapp.R;
+import com.dabloons.wattsapp.WattsApplication;
+import com.dabloons.wattsapp.model.integration.NanoleafPanelDiscoveryRecord;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Last known address of each Nanoleaf panel, kept on the device so known panels can be
+ * reached directly without waiting on mDNS discovery. Records are keyed by panel name.
+ */
+public final class NanoleafDiscoveryCache {
+
+    private final String LOG_TAG = "NanoleafDiscoveryCache";
+
+    private static volatile NanoleafDiscoveryCache instance;
+
+    private static final String SHARED_PREFERENCE_NANOLEAF_DISCOVERY = WattsApplication.getResourceString(R.string.shared_preference_nanoleaf_discovery);
+
+    private final SharedPreferences preferences;
+    private final Gson gson = new Gson();
+
+    private NanoleafDiscoveryCache() {
+        preferences = WattsApplication.getAppContext().getSharedPreferences(SHARED_PREFERENCE_NANOLEAF_DISCOVERY, Context.MODE_PRIVATE);
+    }
+
+    @Nullable
+    public NanoleafPanelDiscoveryRecord getRecord(String panelName) {
+        String json = preferences.getString(panelName, null);
+        if(json == null)
+            return null;
+
+        try {
+            return gson.fromJson(json, NanoleafPanelDiscoveryRecord.class);
+        } catch(JsonParseException e) {
+            Log.w(LOG_TAG, "Dropping unreadable record for " + panelName);
+            preferences.edit().remove(panelName).apply();
+            return null;
+        }
+    }
+
+    /**
+     * Record that a panel was just seen at the given address
+     */
+    public void recordSeen(String panelName, String host, int port) {
+        NanoleafPanelDiscoveryRecord record = new NanoleafPanelDiscoveryRecord(panelName, host, port, System.currentTimeMillis());
+        preferences.edit().putString(panelName, gson.toJson(record)).apply();
+    }
+
+    /**
+     * Forget every panel, e.g. once the user has signed out
+     */
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    public static NanoleafDiscoveryCache getInstance() {
+        NanoleafDiscoveryCache result = instance;
+        if (result != null) {
+            return result;
+        }
+        synchronized(NanoleafDiscoveryCache.class) {
+            if (instance == null) {
+                instance = new NanoleafDiscoveryCache();
+            }
+            return instance;
+        }
+    }
+}
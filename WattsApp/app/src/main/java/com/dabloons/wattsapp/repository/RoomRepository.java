@@ -14,6 +14,7 @@ import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.QuerySnapshot;
@@ -90,6 +91,13 @@ public final class RoomRepository {
     }
 
 
+    /**
+     * Add removing the lights from the room to a batch, e.g. when the lights are being deleted
+     */
+    public void removeLightsFromRoom(WriteBatch batch, Room room, List<String> lightIds) {
+        batch.update(getRoomCollection().document(room.getUid()), LIGHT_IDS_FIELD, FieldValue.arrayRemove(lightIds.toArray()));
+    }
+
     public void getUserDefinedRooms(WattsCallback<ArrayList<Room>> callback){
         ArrayList<Room> ret = new ArrayList<>();
         CollectionReference roomCollection = getRoomCollection();
@@ -17,11 +17,16 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.MetadataChanges;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.QuerySnapshot;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import util.FirestoreUtil;
 import util.WattsCallback;
@@ -36,6 +41,7 @@ public final class SceneRepository
     private final String SCENES_COLLECTION_NAME = WattsApplication.getResourceString(R.string.collection_scenes);
     private final String USER_ID_FIELD = WattsApplication.getResourceString(R.string.field_userId);
     private final String SCENES_FIELD_TYPE = WattsApplication.getResourceString(R.string.field_scenes);
+    private final String ROOM_ID_FIELD = WattsApplication.getResourceString(R.string.field_room_id);
 
 
     public static SceneRepository getInstance() {
@@ -76,28 +82,55 @@ public final class SceneRepository
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return;
 
-        getSceneCollection().get().addOnCompleteListener(task -> {
-           if(!task.isComplete()) {
+        getRoomScenesQuery(user.getUid(), roomID).get().addOnCompleteListener(task -> {
+           if(!task.isSuccessful()) {
                String message = "Failed to get secenes collection";
                Log.e(LOG_TAG, message);
+               callback.apply(new ArrayList<>(), new WattsCallbackStatus(message));
+               return;
            }
 
-           List<Scene> ret = new ArrayList<>();
-           for(QueryDocumentSnapshot document : task.getResult())
-           {
-               Object query = document.get("roomId");
-               if(query != null)
-               {
-                   boolean isInRoom = query.toString().equals(roomID);
-                   if(isInRoom)
-                       ret.add(document.toObject(Scene.class));
-               }
-
-           }
-            callback.apply(ret);
+           callback.apply(getScenesFromSnapshot(task.getResult()));
         });
     }
 
+    /**
+     * Delivers the locally cached scenes for the room right away, then again once the
+     * server results arrive. The callback may be called twice.
+     */
+    public void getScenesIncrementally(String roomID, WattsCallback<List<Scene>> callback)
+    {
+        FirebaseUser user = UserManager.getInstance().getCurrentUser();
+        if(user == null) return;
+
+        AtomicReference<ListenerRegistration> registration = new AtomicReference<>();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        ListenerRegistration listener = getRoomScenesQuery(user.getUid(), roomID)
+                .addSnapshotListener(MetadataChanges.INCLUDE, (snapshot, e) -> {
+                    if(finished.get())
+                        return;
+
+                    if(e != null || snapshot == null) {
+                        String message = "Failed to get secenes collection";
+                        Log.e(LOG_TAG, message);
+                        finished.set(true);
+                        callback.apply(new ArrayList<>(), new WattsCallbackStatus(message));
+                    }
+                    else {
+                        if(!snapshot.getMetadata().isFromCache())
+                            finished.set(true);
+                        callback.apply(getScenesFromSnapshot(snapshot));
+                    }
+
+                    if(finished.get() && registration.get() != null)
+                        registration.get().remove();
+                });
+
+        registration.set(listener);
+        if(finished.get())
+            listener.remove();
+    }
+
     public Task<Void> deleteScene(Scene scene) {
         return getSceneCollection().document(scene.getUid()).delete();
     }
@@ -106,6 +139,19 @@ public final class SceneRepository
         FirestoreUtil.deleteDocumentsForUser(getSceneCollection(), callback);
     }
 
+    private Query getRoomScenesQuery(String userId, String roomID) {
+        return getSceneCollection()
+                .whereEqualTo(USER_ID_FIELD, userId)
+                .whereEqualTo(ROOM_ID_FIELD, roomID);
+    }
+
+    private List<Scene> getScenesFromSnapshot(QuerySnapshot snapshot) {
+        List<Scene> ret = new ArrayList<>();
+        for(QueryDocumentSnapshot document : snapshot)
+            ret.add(document.toObject(Scene.class));
+        return ret;
+    }
+
     // Get the User Collection Reference
     private CollectionReference getSceneCollection(){
         return FirebaseFirestore.getInstance().collection(SCENES_COLLECTION_NAME);
@@ -13,7 +13,9 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.WriteBatch;
 
@@ -106,6 +108,11 @@ public final class UserAuthRepository {
         return this.getUserAuthCollection().document(doc).get();
     }
 
+    public ListenerRegistration addIntegrationAuthListener(IntegrationType type, EventListener<DocumentSnapshot> listener) {
+        String doc = getIntegrationDocument(type);
+        return this.getUserAuthCollection().document(doc).addSnapshotListener(listener);
+    }
+
     public Task<Void> setIntegrationAuth(IntegrationType type, IntegrationAuth props) {
         String doc = getIntegrationDocument(type);
         return this.getUserAuthCollection().document(doc).set(props);
@@ -0,0 +1,88 @@
+package com.dabloons.wattsapp.service;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * A request callback that can be cancelled before the request finishes. Cancelling cancels
+ * the request's call, or keeps it from being sent if it hasn't been yet, and the wrapped
+ * callback is not called afterwards.
+ */
+public class CancellableCallback implements Callback {
+
+    private final Callback delegate;
+    private final State state;
+
+    public CancellableCallback(Callback delegate) {
+        this(delegate, new State());
+    }
+
+    private CancellableCallback(Callback delegate, State state) {
+        this.delegate = delegate;
+        this.state = state;
+    }
+
+    /**
+     * A callback for the same request that is cancelled along with this one, for code that
+     * sends the request on with its own callback
+     */
+    public CancellableCallback withDelegate(Callback delegate) {
+        return new CancellableCallback(delegate, state);
+    }
+
+    public void cancel() {
+        Call call;
+        synchronized(state) {
+            state.cancelled = true;
+            call = state.call;
+        }
+
+        if(call != null)
+            call.cancel();
+    }
+
+    public boolean isCancelled() {
+        synchronized(state) {
+            return state.cancelled;
+        }
+    }
+
+    /**
+     * Record the call that sends the request, cancelling it right away if this already is
+     */
+    void attach(Call call) {
+        synchronized(state) {
+            state.call = call;
+            if(!state.cancelled)
+                return;
+        }
+
+        call.cancel();
+    }
+
+    @Override
+    public void onFailure(@NonNull Call call, @NonNull IOException e) {
+        if(isCancelled())
+            return;
+        delegate.onFailure(call, e);
+    }
+
+    @Override
+    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+        if(isCancelled()) {
+            response.close();
+            return;
+        }
+        delegate.onResponse(call, response);
+    }
+
+    private static class State {
+        boolean cancelled = false;
+        Call call;
+    }
+}
@@ -7,6 +7,7 @@ import com.google.gson.JsonObject;
 
 import java.util.Map;
 
+import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -32,26 +33,44 @@ public abstract class HttpService {
     protected String baseUrl;
 
     public HttpService() {
-        httpClient = new OkHttpClient();
+        httpClient = HttpTransport.getInstance().getClient();
         setBaseUrl();
     }
 
     public HttpService(String baseUrl) {
-        httpClient = new OkHttpClient();
+        httpClient = HttpTransport.getInstance().getClient();
         this.baseUrl = baseUrl;
     }
 
     public abstract void setBaseUrl();
 
     protected void makeRequestWithBodyAsync(String path, RequestType requestType, RequestBody body, Map<String, String> headers, Callback callback) {
-        Request request = buildRequest(path, requestType, body, headers).build();
-        httpClient.newCall(request).enqueue(callback);
+        makeRequestWithBodyAsync(this.baseUrl, path, requestType, body, headers, callback);
     }
 
     protected void makeRequestAsync(String path, RequestType requestType, Map<String, String> headers, Callback callback) {
         makeRequestWithBodyAsync(path, requestType, null, headers, callback);
     }
 
+    protected void makeRequestWithBodyAsync(String baseUrl, String path, RequestType requestType, RequestBody body, Map<String, String> headers, Callback callback) {
+        Request request = buildRequest(baseUrl, path, requestType, body, headers).build();
+        Call call = httpClient.newCall(request);
+        if(callback instanceof CancellableCallback)
+            ((CancellableCallback) callback).attach(call);
+        call.enqueue(callback);
+    }
+
+    protected void makeRequestAsync(String baseUrl, String path, RequestType requestType, Map<String, String> headers, Callback callback) {
+        makeRequestWithBodyAsync(baseUrl, path, requestType, null, headers, callback);
+    }
+
+    public void sendPreparedRequest(PreparedRequest request, Callback callback) {
+        if(request.getBaseUrl() == null)
+            makeRequestWithBodyAsync(request.getPath(), request.getRequestType(), request.getBody(), request.getHeaders(), callback);
+        else
+            makeRequestWithBodyAsync(request.getBaseUrl(), request.getPath(), request.getRequestType(), request.getBody(), request.getHeaders(), callback);
+    }
+
     protected RequestBody createRequestBody(JsonObject bodyObj) {
         String json = bodyObj.toString();
         return RequestBody.create(MediaType.parse(MEDIA_TYPE), json);
@@ -62,8 +81,8 @@ public abstract class HttpService {
         return RequestBody.create(MediaType.parse(MEDIA_TYPE), body);
     }
 
-    private Request.Builder buildRequest(String path, RequestType requestType, RequestBody body, Map<String, String> headers) {
-        String url = this.baseUrl + path;
+    private Request.Builder buildRequest(String baseUrl, String path, RequestType requestType, RequestBody body, Map<String, String> headers) {
+        String url = baseUrl + path;
 
         Request.Builder requestBuilder = new Request.Builder()
                 .url(url);
@@ -0,0 +1,206 @@
+package com.dabloons.wattsapp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.dabloons.wattsapp.R;
+import com.dabloons.wattsapp.WattsApplication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The one OkHttpClient every integration sends its requests through, so they share a
+ * connection pool, dispatcher and threads. Idle connections are kept alive across a burst of
+ * light commands, but not past the few seconds the panels' own HTTP servers keep them open,
+ * and connection reuse is measured per call.
+ */
+public class HttpTransport {
+
+    private final String LOG_TAG = "HttpTransport";
+
+    private static volatile HttpTransport instance;
+
+    private final int MAX_REQUESTS = Integer.parseInt(WattsApplication.getResourceString(R.string.http_max_requests));
+    private final int MAX_REQUESTS_PER_HOST = Integer.parseInt(WattsApplication.getResourceString(R.string.http_max_requests_per_host));
+    private final int MAX_IDLE_CONNECTIONS = Integer.parseInt(WattsApplication.getResourceString(R.string.http_max_idle_connections));
+    private final long KEEP_ALIVE_MS = Long.parseLong(WattsApplication.getResourceString(R.string.http_keep_alive_ms));
+
+    private final OkHttpClient client;
+
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+    private final AtomicLong pooledConnections = new AtomicLong();
+    private final AtomicLong connectsStarted = new AtomicLong();
+    private final AtomicLong connectsFailed = new AtomicLong();
+    private final AtomicLong totalConnectNanos = new AtomicLong();
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong totalTlsNanos = new AtomicLong();
+
+    private HttpTransport() {
+        // a home has the Hue cloud and a few panels, so the total limit only needs to cover a
+        // handful of hosts, and the per host limit keeps a Hue burst near its rate limit
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        // pooled connections are keyed by address, so each host keeps its own idle connections.
+        // the keep alive stays under the panels' idle timeout so a reused connection isn't already closed
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS))
+                .eventListenerFactory(call -> new CallMetricsListener())
+                .build();
+    }
+
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Open a connection to the host ahead of time so the first real request can reuse it
+     */
+    public void prewarm(String url) {
+        HttpUrl httpUrl = url == null ? null : HttpUrl.parse(url);
+        if(httpUrl == null) {
+            Log.w(LOG_TAG, "Not prewarming invalid url: " + url);
+            return;
+        }
+
+        Request request = new Request.Builder()
+                .url(httpUrl)
+                .head()
+                .build();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Log.d(LOG_TAG, "Failed to prewarm " + httpUrl.host() + ": " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                // any response means the connection is up, closing it returns it to the pool
+                response.close();
+            }
+        });
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(connectionsAcquired.get(), pooledConnections.get(),
+                connectsStarted.get(), connectsFailed.get(), totalConnectNanos.get(),
+                tlsHandshakes.get(), totalTlsNanos.get(),
+                client.connectionPool().connectionCount(), client.connectionPool().idleConnectionCount());
+    }
+
+    public static HttpTransport getInstance() {
+        HttpTransport result = instance;
+        if (result != null) {
+            return result;
+        }
+        synchronized(HttpTransport.class) {
+            if (instance == null) {
+                instance = new HttpTransport();
+            }
+            return instance;
+        }
+    }
+
+    // one instance per call, so the timing fields are only touched by that call
+    private class CallMetricsListener extends EventListener {
+        private long connectStartNanos;
+        private long secureConnectStartNanos;
+        private boolean connected;
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy) {
+            connected = true;
+            connectStartNanos = System.nanoTime();
+            connectsStarted.incrementAndGet();
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            secureConnectStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+            tlsHandshakes.incrementAndGet();
+            totalTlsNanos.addAndGet(System.nanoTime() - secureConnectStartNanos);
+        }
+
+        @Override
+        public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy, Protocol protocol) {
+            totalConnectNanos.addAndGet(System.nanoTime() - connectStartNanos);
+        }
+
+        @Override
+        public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy,
+                                  Protocol protocol, @NonNull IOException ioe) {
+            connectsFailed.incrementAndGet();
+            totalConnectNanos.addAndGet(System.nanoTime() - connectStartNanos);
+        }
+
+        @Override
+        public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+            connectionsAcquired.incrementAndGet();
+            if(!connected)
+                pooledConnections.incrementAndGet();
+        }
+    }
+
+    public static class Metrics {
+        public final long connectionsAcquired;
+        public final long pooledConnections;
+        public final long connectsStarted;
+        public final long connectsFailed;
+        public final long averageConnectMillis;
+        public final long tlsHandshakes;
+        public final long averageTlsMillis;
+        public final int openConnections;
+        public final int idleConnections;
+
+        Metrics(long connectionsAcquired, long pooledConnections, long connectsStarted, long connectsFailed,
+                long totalConnectNanos, long tlsHandshakes, long totalTlsNanos, int openConnections, int idleConnections) {
+            this.connectionsAcquired = connectionsAcquired;
+            this.pooledConnections = pooledConnections;
+            this.connectsStarted = connectsStarted;
+            this.connectsFailed = connectsFailed;
+            this.averageConnectMillis = connectsStarted == 0 ? 0 : totalConnectNanos / connectsStarted / 1_000_000;
+            this.tlsHandshakes = tlsHandshakes;
+            this.averageTlsMillis = tlsHandshakes == 0 ? 0 : totalTlsNanos / tlsHandshakes / 1_000_000;
+            this.openConnections = openConnections;
+            this.idleConnections = idleConnections;
+        }
+
+        /**
+         * Fraction of requests that reused a pooled connection instead of opening a new one
+         */
+        public double getPoolHitRate() {
+            return connectionsAcquired == 0 ? 0 : (double) pooledConnections / connectionsAcquired;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("pool hit rate %.2f (%d/%d), %d connects (%d failed) avg %dms, %d TLS handshakes avg %dms, %d open/%d idle",
+                    getPoolHitRate(), pooledConnections, connectionsAcquired, connectsStarted, connectsFailed,
+                    averageConnectMillis, tlsHandshakes, averageTlsMillis, openConnections, idleConnections);
+        }
+    }
+}
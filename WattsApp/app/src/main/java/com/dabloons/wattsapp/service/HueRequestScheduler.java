@@ -0,0 +1,356 @@
+package com.dabloons.wattsapp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * Paces commands sent to the Hue bridge so they stay under its documented limits
+ * (roughly 10 light commands and 1 group command per second).
+ *
+ * Light state and group action requests each draw from their own token bucket. Within a bucket,
+ * commands are queued per fairness key, normally the room they were sent from, and the keys are
+ * served round-robin so a room with many lights gets the same share as a room with one.
+ * Commands without a key are queued per target (light or group). All other requests bypass
+ * the scheduler.
+ */
+public class HueRequestScheduler {
+
+    private final String LOG_TAG = "HueRequestScheduler";
+
+    private static final Pattern LIGHT_STATE_PATH = Pattern.compile(".*/lights/([^/]+)/state$");
+    private static final Pattern GROUP_ACTION_PATH = Pattern.compile(".*/groups/([^/]+)/action$");
+
+    private static final int MAX_RETRIES = 2;
+
+    @FunctionalInterface
+    public interface RequestSender {
+        void send(Callback callback);
+    }
+
+    private final ScheduledExecutorService executor;
+
+    private final CommandQueue lightQueue;
+    private final CommandQueue groupQueue;
+
+    private boolean drainScheduled;
+
+    public HueRequestScheduler(double lightCommandsPerSecond, double groupCommandsPerSecond) {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        lightQueue = new CommandQueue("lights", new TokenBucket(lightCommandsPerSecond, lightCommandsPerSecond));
+        groupQueue = new CommandQueue("groups", new TokenBucket(groupCommandsPerSecond, groupCommandsPerSecond));
+        drainScheduled = false;
+    }
+
+    public void schedule(String path, Callback callback, RequestSender sender) {
+        schedule(path, null, callback, sender);
+    }
+
+    /**
+     * Send the request now if its bucket has a token, otherwise queue it behind the other
+     * commands with the same fairness key.
+     * @param fairnessKey The room the command is for, or null to queue it per target
+     */
+    public void schedule(String path, @Nullable String fairnessKey, Callback callback, RequestSender sender) {
+        CommandQueue queue;
+        String key;
+
+        Matcher lightMatcher = LIGHT_STATE_PATH.matcher(path);
+        Matcher groupMatcher = GROUP_ACTION_PATH.matcher(path);
+        if(lightMatcher.matches()) {
+            queue = lightQueue;
+            key = lightMatcher.group(1);
+        }
+        else if(groupMatcher.matches()) {
+            queue = groupQueue;
+            key = groupMatcher.group(1);
+        }
+        else {
+            sender.send(callback);
+            return;
+        }
+
+        if(fairnessKey != null)
+            key = fairnessKey;
+
+        synchronized(this) {
+            queue.add(new ScheduledCommand(key, sender, callback));
+        }
+        drain();
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(
+                lightQueue.size(), groupQueue.size(),
+                lightQueue.dispatched, groupQueue.dispatched,
+                lightQueue.averageWaitMillis(), groupQueue.averageWaitMillis(),
+                lightQueue.maxWaitNanos / 1_000_000, groupQueue.maxWaitNanos / 1_000_000,
+                lightQueue.retried + groupQueue.retried);
+    }
+
+    private void drain() {
+        long nextDrainNanos;
+        synchronized(this) {
+            dispatchAvailable(lightQueue);
+            dispatchAvailable(groupQueue);
+
+            nextDrainNanos = Math.min(lightQueue.nanosUntilNextDispatch(), groupQueue.nanosUntilNextDispatch());
+            if(nextDrainNanos == Long.MAX_VALUE || drainScheduled)
+                return;
+
+            drainScheduled = true;
+        }
+
+        executor.schedule(() -> {
+            synchronized(HueRequestScheduler.this) {
+                drainScheduled = false;
+            }
+            drain();
+        }, nextDrainNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void dispatchAvailable(CommandQueue queue) {
+        while(queue.size() > 0) {
+            // commands cancelled while they waited are dropped without using a token
+            if(queue.peek().isCancelled()) {
+                queue.poll();
+                continue;
+            }
+            if(!queue.bucket.tryAcquire())
+                return;
+
+            ScheduledCommand command = queue.poll();
+            long waitNanos = System.nanoTime() - command.enqueuedAtNanos;
+            queue.recordDispatch(waitNanos);
+            executor.execute(() -> send(queue, command));
+        }
+    }
+
+    private void send(CommandQueue queue, ScheduledCommand command) {
+        command.attempts++;
+        Callback scheduledCallback = new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                command.callback.onFailure(call, e);
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                boolean throttled = response.code() == 429 || response.code() == 503;
+                if(throttled && command.attempts <= MAX_RETRIES) {
+                    Log.w(LOG_TAG, "Bridge throttled " + queue.name + " command, requeueing: " + command.key);
+                    response.close();
+                    synchronized(HueRequestScheduler.this) {
+                        queue.retried++;
+                        queue.bucket.drain();
+                        queue.requeue(command);
+                    }
+                    drain();
+                    return;
+                }
+
+                command.callback.onResponse(call, response);
+            }
+        };
+
+        // a cancellable command stays cancellable once it is sent
+        if(command.callback instanceof CancellableCallback)
+            scheduledCallback = ((CancellableCallback) command.callback).withDelegate(scheduledCallback);
+        command.sender.send(scheduledCallback);
+    }
+
+    public static class Metrics {
+        public final int lightQueueDepth;
+        public final int groupQueueDepth;
+        public final long lightCommandsDispatched;
+        public final long groupCommandsDispatched;
+        public final long averageLightWaitMillis;
+        public final long averageGroupWaitMillis;
+        public final long maxLightWaitMillis;
+        public final long maxGroupWaitMillis;
+        public final long throttledRetries;
+
+        Metrics(int lightQueueDepth, int groupQueueDepth,
+                long lightCommandsDispatched, long groupCommandsDispatched,
+                long averageLightWaitMillis, long averageGroupWaitMillis,
+                long maxLightWaitMillis, long maxGroupWaitMillis, long throttledRetries) {
+            this.lightQueueDepth = lightQueueDepth;
+            this.groupQueueDepth = groupQueueDepth;
+            this.lightCommandsDispatched = lightCommandsDispatched;
+            this.groupCommandsDispatched = groupCommandsDispatched;
+            this.averageLightWaitMillis = averageLightWaitMillis;
+            this.averageGroupWaitMillis = averageGroupWaitMillis;
+            this.maxLightWaitMillis = maxLightWaitMillis;
+            this.maxGroupWaitMillis = maxGroupWaitMillis;
+            this.throttledRetries = throttledRetries;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lights[depth=%d, sent=%d, avgWait=%dms, maxWait=%dms] " +
+                            "groups[depth=%d, sent=%d, avgWait=%dms, maxWait=%dms] retries=%d",
+                    lightQueueDepth, lightCommandsDispatched, averageLightWaitMillis, maxLightWaitMillis,
+                    groupQueueDepth, groupCommandsDispatched, averageGroupWaitMillis, maxGroupWaitMillis,
+                    throttledRetries);
+        }
+    }
+
+    private static class ScheduledCommand {
+        final String key;
+        final RequestSender sender;
+        final Callback callback;
+        long enqueuedAtNanos;
+        int attempts;
+
+        ScheduledCommand(String key, RequestSender sender, Callback callback) {
+            this.key = key;
+            this.sender = sender;
+            this.callback = callback;
+            this.enqueuedAtNanos = System.nanoTime();
+            this.attempts = 0;
+        }
+
+        boolean isCancelled() {
+            return callback instanceof CancellableCallback && ((CancellableCallback) callback).isCancelled();
+        }
+    }
+
+    /**
+     * Per-target FIFO queues served round-robin. Not thread safe, guarded by the scheduler.
+     */
+    private static class CommandQueue {
+        final String name;
+        final TokenBucket bucket;
+
+        private final Map<String, ArrayDeque<ScheduledCommand>> queues = new HashMap<>();
+        private final ArrayDeque<String> rotation = new ArrayDeque<>();
+        private int size = 0;
+
+        long dispatched = 0;
+        long retried = 0;
+        long totalWaitNanos = 0;
+        long maxWaitNanos = 0;
+
+        CommandQueue(String name, TokenBucket bucket) {
+            this.name = name;
+            this.bucket = bucket;
+        }
+
+        void add(ScheduledCommand command) {
+            ArrayDeque<ScheduledCommand> queue = queues.get(command.key);
+            if(queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(command.key, queue);
+                rotation.addLast(command.key);
+            }
+            queue.addLast(command);
+            size++;
+        }
+
+        void requeue(ScheduledCommand command) {
+            ArrayDeque<ScheduledCommand> queue = queues.get(command.key);
+            if(queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(command.key, queue);
+                rotation.addFirst(command.key);
+            }
+            queue.addFirst(command);
+            size++;
+            // the wait before the throttled attempt has been recorded, only count the wait from here
+            command.enqueuedAtNanos = System.nanoTime();
+        }
+
+        ScheduledCommand peek() {
+            return queues.get(rotation.peekFirst()).peekFirst();
+        }
+
+        ScheduledCommand poll() {
+            String key = rotation.pollFirst();
+            ArrayDeque<ScheduledCommand> queue = queues.get(key);
+            ScheduledCommand command = queue.pollFirst();
+            if(queue.isEmpty())
+                queues.remove(key);
+            else
+                rotation.addLast(key);
+            size--;
+            return command;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long nanosUntilNextDispatch() {
+            if(size == 0)
+                return Long.MAX_VALUE;
+            return bucket.nanosUntilAvailable();
+        }
+
+        void recordDispatch(long waitNanos) {
+            dispatched++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+
+        long averageWaitMillis() {
+            if(dispatched == 0)
+                return 0;
+            return (totalWaitNanos / dispatched) / 1_000_000;
+        }
+    }
+
+    private static class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TokenBucket(double capacity, double tokensPerSecond) {
+            this.capacity = Math.max(1, capacity);
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = this.capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        boolean tryAcquire() {
+            refill();
+            if(tokens < 1)
+                return false;
+            tokens -= 1;
+            return true;
+        }
+
+        long nanosUntilAvailable() {
+            refill();
+            if(tokens >= 1)
+                return 0;
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        void drain() {
+            refill();
+            tokens = Math.min(tokens, 0);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+        }
+    }
+}
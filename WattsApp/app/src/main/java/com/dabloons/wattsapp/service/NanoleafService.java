@@ -13,6 +13,7 @@ import com.dabloons.wattsapp.model.LightState;
 import com.dabloons.wattsapp.model.integration.IntegrationScene;
 import com.dabloons.wattsapp.model.integration.IntegrationType;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelAuthCollection;
+import com.dabloons.wattsapp.model.integration.NanoleafPanelEndpoint;
 import com.dabloons.wattsapp.model.integration.NanoleafPanelIntegrationAuth;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -43,9 +44,9 @@ public class NanoleafService extends HttpService {
     private NanoleafService() { super(); }
 
     public void addNanoleafUser(NanoleafPanelIntegrationAuth authProps, WattsCallback<String> callback) {
-        setBaseUrl(authProps.getBaseUrl());
+        NanoleafPanelEndpoint endpoint = authProps.getEndpoint();
         RequestBody emptyBody = createEmptyRequestBody();
-        makeRequestWithBodyAsync("new", RequestType.POST, emptyBody, getStandardHeaders(), new Callback() {
+        makeRequestWithBodyAsync(endpoint.getBaseUrl(), endpoint.getNewUserPath(), RequestType.POST, emptyBody, getStandardHeaders(), new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
                 callback.apply(null, new WattsCallbackStatus(false, e.getMessage()));
@@ -56,6 +57,14 @@ public class NanoleafService extends HttpService {
                 if(response.code() == 403) {
                     // User hasn't put leafs in pair mode
                     String msg = String.format("Nanoleafs [%s] are not in connect mode", authProps.getName());
+                    response.close();
+                    callback.apply(null, new WattsCallbackStatus(msg));
+                    return;
+                }
+
+                if(!response.isSuccessful()) {
+                    String msg = String.format("Failed to pair with nanoleafs [%s]: %s", authProps.getName(), response.message());
+                    response.close();
                     callback.apply(null, new WattsCallbackStatus(msg));
                     return;
                 }
@@ -69,23 +78,26 @@ public class NanoleafService extends HttpService {
     }
 
     public void getLightState(NanoleafPanelIntegrationAuth panel, Callback callback) {
-        setBaseUrl(panel.getBaseUrl());
-        String path = String.format("%s/state", panel.getAuthToken());
-        makeRequestAsync(path, RequestType.GET, getStandardHeaders(), callback);
+        NanoleafPanelEndpoint endpoint = panel.getEndpoint();
+        makeRequestAsync(endpoint.getBaseUrl(), endpoint.getStatePath(), RequestType.GET, getStandardHeaders(), callback);
     }
 
     public void setLightState(Light light, LightState state, Callback callback) {
         if(light.getIntegrationType() != IntegrationType.NANOLEAF) {
             String msg = "Setting light state, integration mismatch";
             Log.e(LOG_TAG, msg);
+            callback.onFailure(null, new IOException(msg));
             return;
         }
 
         userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status) -> {
-            NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth;
-            NanoleafPanelIntegrationAuth panel = collection.findNanoleafPanelAuthForLight(light);
-            setBaseUrl(panel.getBaseUrl());
-            String path = String.format("%s/state", panel.getAuthToken());
+            NanoleafPanelIntegrationAuth panel = status.success && auth != null
+                    ? ((NanoleafPanelAuthCollection) auth).findNanoleafPanelAuthForLight(light) : null;
+            if(panel == null) {
+                callback.onFailure(null, new IOException("No nanoleaf panel auth for light " + light.getName()));
+                return;
+            }
+            NanoleafPanelEndpoint endpoint = panel.getEndpoint();
 
             JsonObject bodyObj = new JsonObject();
 
@@ -115,7 +127,7 @@ public class NanoleafService extends HttpService {
 
             RequestBody body = createRequestBody(bodyObj);
 
-            makeRequestWithBodyAsync(path, RequestType.PUT, body, getStandardHeaders(), callback);
+            makeRequestWithBodyAsync(endpoint.getBaseUrl(), endpoint.getStatePath(), RequestType.PUT, body, getStandardHeaders(), callback);
         });
     }
 
@@ -123,29 +135,27 @@ public class NanoleafService extends HttpService {
         userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status) -> {
             NanoleafPanelAuthCollection collection = (NanoleafPanelAuthCollection) auth;
             NanoleafPanelIntegrationAuth panel = collection.findNanoleafPanelAuthForLight(light);
-            setBaseUrl(panel.getBaseUrl());
-            String path = String.format("%s/effects/effectsList", panel.getAuthToken());
-            makeRequestAsync(path, RequestType.GET, getStandardHeaders(), callback);
+            getEffectsForLight(panel, callback);
         });
     }
 
     public void getEffectsForLight(NanoleafPanelIntegrationAuth integrationAuth, Callback callback)
     {
-        setBaseUrl(integrationAuth.getBaseUrl());
-        String path = String.format("%s/effects/effectsList", integrationAuth.getAuthToken());
-        makeRequestAsync(path, RequestType.GET, getStandardHeaders(), callback);
+        NanoleafPanelEndpoint endpoint = integrationAuth.getEndpoint();
+        makeRequestAsync(endpoint.getBaseUrl(), endpoint.getEffectsListPath(), RequestType.GET, getStandardHeaders(), callback);
     }
 
     public void activateEffectForLight(NanoleafPanelIntegrationAuth panel, IntegrationScene effect, Callback callback) {
-        userManager.getIntegrationAuthData(IntegrationType.NANOLEAF, (auth, status) -> {
-            setBaseUrl(panel.getBaseUrl());
-            String path = String.format("%s/effects", panel.getAuthToken());
+        sendPreparedRequest(prepareActivateEffect(panel, effect), callback);
+    }
 
-            JsonObject jsonObj = new JsonObject();
-            jsonObj.addProperty("select", effect.getIntegrationId());
-            RequestBody body = createRequestBody(jsonObj);
-            makeRequestWithBodyAsync(path, RequestType.PUT, body, getStandardHeaders(), callback);
-        });
+    public PreparedRequest prepareActivateEffect(NanoleafPanelIntegrationAuth panel, IntegrationScene effect) {
+        NanoleafPanelEndpoint endpoint = panel.getEndpoint();
+
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("select", effect.getIntegrationId());
+        RequestBody body = createRequestBody(jsonObj);
+        return new PreparedRequest(endpoint.getBaseUrl(), endpoint.getEffectsPath(), RequestType.PUT, body, getStandardHeaders());
     }
 
     private Map<String, String> getStandardHeaders() {
@@ -155,11 +165,7 @@ public class NanoleafService extends HttpService {
     }
 
     public void setBaseUrl() {
-        baseUrl = "";   // will get once we connect to hue
-    }
-
-    public void setBaseUrl(String url) {
-        this.baseUrl = url;
+        baseUrl = "";   // each panel has its own endpoint
     }
 
     public static NanoleafService getInstance() {
@@ -3,6 +3,8 @@ package com.dabloons.wattsapp.service;
 
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.manager.LightManager;
@@ -41,10 +43,24 @@ public class PhillipsHueService extends HttpService {
     private final int BRIGHTNESS_LIMIT = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_brightness_max));
     private final int SATURATION_LIMIT = Integer.parseInt(WattsApplication.getResourceString(R.string.phillips_hue_saturation_max));
 
+    private final HueRequestScheduler requestScheduler = new HueRequestScheduler(
+            Double.parseDouble(WattsApplication.getResourceString(R.string.phillips_hue_light_commands_per_second)),
+            Double.parseDouble(WattsApplication.getResourceString(R.string.phillips_hue_group_commands_per_second)));
+
     private PhillipsHueService() {
         super();
     }
 
+    @Override
+    protected void makeRequestWithBodyAsync(String path, RequestType requestType, RequestBody body, Map<String, String> headers, Callback callback) {
+        requestScheduler.schedule(path, callback, scheduledCallback ->
+                super.makeRequestWithBodyAsync(path, requestType, body, headers, scheduledCallback));
+    }
+
+    public HueRequestScheduler.Metrics getSchedulerMetrics() {
+        return requestScheduler.getMetrics();
+    }
+
     public void linkButton(String accessToken, Callback callback) {
         JsonObject jsonObj = new JsonObject();
         jsonObj.addProperty("linkbutton", true);
@@ -72,6 +88,24 @@ public class PhillipsHueService extends HttpService {
         });
     }
 
+    /**
+     * Get the bridge's full configuration, i.e. lights, groups, scenes and config, in one request
+     */
+    public void getFullConfiguration(Callback callback) {
+        userManager.getIntegrationAuthData(IntegrationType.PHILLIPS_HUE, (var, status) -> {
+            if(!status.success || var == null) {
+                callback.onFailure(null, new IOException("Failed to get phillips hue auth: " + status.message));
+                return;
+            }
+
+            PhillipsHueIntegrationAuth auth = (PhillipsHueIntegrationAuth)var;
+            String accessToken = auth.getAccessToken();
+            String username = auth.getUsername();
+
+            makeRequestAsync(username, RequestType.GET, getStandardHeaders(accessToken), callback);
+        });
+    }
+
     public void getAllScenes(Callback callback) {
         userManager.getIntegrationAuthData(IntegrationType.PHILLIPS_HUE, (var, status) -> {
             PhillipsHueIntegrationAuth auth = (PhillipsHueIntegrationAuth)var;
@@ -88,20 +122,26 @@ public class PhillipsHueService extends HttpService {
             return;
 
         userManager.getIntegrationAuthData(IntegrationType.PHILLIPS_HUE, (var, status) -> {
-            PhillipsHueIntegrationAuth auth = (PhillipsHueIntegrationAuth)var;
-            String accessToken = auth.getAccessToken();
-            String username = auth.getUsername();
+            activateScene((PhillipsHueIntegrationAuth)var, scene, room, callback);
+        });
+    }
 
+    public void activateScene(PhillipsHueIntegrationAuth auth, IntegrationScene scene, Room room, Callback callback) {
+        sendPreparedRequest(prepareActivateScene(auth, scene, room), callback);
+    }
 
-            JsonObject jsonObj = new JsonObject();
-            jsonObj.addProperty("on", true);
-            jsonObj.addProperty("scene", scene.getIntegrationId());
+    public PreparedRequest prepareActivateScene(PhillipsHueIntegrationAuth auth, IntegrationScene scene, Room room) {
+        String accessToken = auth.getAccessToken();
+        String username = auth.getUsername();
 
-            RequestBody body = createRequestBody(jsonObj);
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("on", true);
+        jsonObj.addProperty("scene", scene.getIntegrationId());
 
-            String url = String.format("%s/groups/%s/action", username, room.getIntegrationId());
-            makeRequestWithBodyAsync(url, RequestType.PUT, body, getStandardHeaders(accessToken), callback);
-        });
+        RequestBody body = createRequestBody(jsonObj);
+
+        String url = String.format("%s/groups/%s/action", username, room.getIntegrationId());
+        return new PreparedRequest(null, url, RequestType.PUT, body, getStandardHeaders(accessToken));
     }
 
     public void createGroupWithLights(Room room, Callback callback) {
@@ -161,13 +201,22 @@ public class PhillipsHueService extends HttpService {
         });
     }
 
-    public void setLightState(Light light, LightState state, Callback callback) {
+    /**
+     * @param roomId The room the command was sent from, so busy rooms share the bridge's rate limit fairly
+     */
+    public void setLightState(Light light, LightState state, @Nullable String roomId, Callback callback) {
         if(light.getIntegrationType() != IntegrationType.PHILLIPS_HUE) {
             String msg = "Setting light state, integration mismatch";
             Log.e(LOG_TAG, msg);
+            callback.onFailure(null, new IOException(msg));
             return;
         }
         userManager.getIntegrationAuthData(IntegrationType.PHILLIPS_HUE, (val, status) -> {
+            if(!status.success || val == null) {
+                callback.onFailure(null, new IOException("No Phillips Hue auth data: " + status.message));
+                return;
+            }
+
             PhillipsHueIntegrationAuth auth = (PhillipsHueIntegrationAuth)val;
             String accessToken = auth.getAccessToken();
             String username = auth.getUsername();
@@ -185,7 +234,9 @@ public class PhillipsHueService extends HttpService {
             RequestBody body = createRequestBody(jsonObj);
 
             String url = username + "/lights/" + light.getIntegrationId() + "/state";
-            makeRequestWithBodyAsync(url, RequestType.PUT, body, getStandardHeaders(accessToken), callback);
+            Map<String, String> headers = getStandardHeaders(accessToken);
+            requestScheduler.schedule(url, roomId, callback, scheduledCallback ->
+                    super.makeRequestWithBodyAsync(url, RequestType.PUT, body, headers, scheduledCallback));
         });
     }
 
@@ -0,0 +1,56 @@
+package com.dabloons.wattsapp.service;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+
+import okhttp3.RequestBody;
+
+/**
+ * A request with its target, headers and serialized body already resolved, so it can be sent
+ * repeatedly without rebuilding it
+ */
+public final class PreparedRequest {
+
+    @Nullable
+    private final String baseUrl;
+    private final String path;
+    private final HttpService.RequestType requestType;
+    @Nullable
+    private final RequestBody body;
+    private final Map<String, String> headers;
+
+    /**
+     * @param baseUrl Base url of the request, or null to use the service's base url
+     */
+    public PreparedRequest(@Nullable String baseUrl, String path, HttpService.RequestType requestType,
+                           @Nullable RequestBody body, Map<String, String> headers) {
+        this.baseUrl = baseUrl;
+        this.path = path;
+        this.requestType = requestType;
+        this.body = body;
+        this.headers = headers;
+    }
+
+    @Nullable
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public HttpService.RequestType getRequestType() {
+        return requestType;
+    }
+
+    @Nullable
+    public RequestBody getBody() {
+        return body;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+}
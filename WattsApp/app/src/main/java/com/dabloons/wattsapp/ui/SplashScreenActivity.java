@@ -9,7 +9,7 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
-import com.dabloons.wattsapp.manager.LightManager;
+import com.dabloons.wattsapp.manager.StartupManager;
 import com.dabloons.wattsapp.manager.UserManager;
 import com.dabloons.wattsapp.ui.main.MainActivity;
 
@@ -33,7 +33,8 @@ public class SplashScreenActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         if(UserManager.getInstance().getCurrentUser() != null) {
-            LightManager.getInstance().syncLightsWithCallback((var, status) -> {
+            // devices keep syncing in the background once the main screen is up
+            StartupManager.getInstance().start((var, status) -> {
                 startNextActivity();
             });
         }
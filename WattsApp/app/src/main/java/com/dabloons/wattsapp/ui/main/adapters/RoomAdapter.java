@@ -19,7 +19,6 @@ import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.dabloons.wattsapp.R;
-import com.dabloons.wattsapp.manager.LightManager;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.manager.RoomManager;
 import com.dabloons.wattsapp.model.Light;
@@ -48,7 +47,7 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.Viewholder>
     private OnItemClickListener clickListener;
 
     private final RoomManager roomManager = RoomManager.getInstance();
-    private final LightManager lightManager = LightManager.getInstance();
+    private final RoomLightLoader roomLightLoader = new RoomLightLoader();
 
     private final int MAX_HUE = Integer.parseInt(WattsApplication.getResourceString(R.string.color_picker_hue_max));
 
@@ -71,7 +70,7 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.Viewholder>
         holder.roomName.setText(room.getName());
         holder.glowCard.setCardBackgroundColor(Color.TRANSPARENT);
         clearSwitchOnClickListener(holder);
-        lightManager.getLightsForIds(room.getLightIds(), (lights, status) -> {
+        roomLightLoader.load(room.getLightIds(), (lights, status) -> {
             boolean on = isRoomLightsOn(lights);
 
             if(on)
@@ -92,7 +91,12 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.Viewholder>
         return mRoomModelArrayList;
     }
 
-    public void setRoomList(ArrayList<Room> roomList) { this.mRoomModelArrayList = roomList; }
+    public void setRoomList(ArrayList<Room> roomList) {
+        this.mRoomModelArrayList = roomList;
+
+        // light states may have changed since the cards were last bound
+        roomLightLoader.invalidateAll();
+    }
 
     private void toggleBackgroundGlow(boolean on, MaterialCardView glowCard, int[] colors) {
         if(on && colors.length > 0) {
@@ -116,7 +120,7 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.Viewholder>
     private void setSwitchOnClickListener(@NonNull Viewholder holder, Room room) {
         holder.roomSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
             if(isChecked) {
-                lightManager.getLightsForIds(room.getLightIds(), (lights, status) -> {
+                roomLightLoader.load(room.getLightIds(), (lights, status) -> {
                     if(!status.success) {
                         UIMessageUtil.showShortToastMessage(buttonView.getContext(), "Failed to turn on lights for room: " + room.getName());
                         return;
@@ -125,6 +129,7 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.Viewholder>
                     int[] colors = getColorsForGradient(lights, true);
                     toggleBackgroundGlow(true, holder.glowCard, colors);
 
+                    roomLightLoader.invalidate(room.getLightIds());
                     roomManager.turnOnRoomLights(room, (var, status1) -> {
                         new Handler(Looper.getMainLooper()).post(() -> {
                             if (status1.success)
@@ -139,6 +144,7 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.Viewholder>
             else
             {
                 toggleBackgroundGlow(false, holder.glowCard, null);
+                roomLightLoader.invalidate(room.getLightIds());
                 RoomManager.getInstance().turnOffRoomLights(room, (var, status) -> {
                     new Handler(Looper.getMainLooper()).post(() -> {
                         if (status.success)
@@ -0,0 +1,114 @@
+package com.dabloons.wattsapp.ui.main.adapters;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.dabloons.wattsapp.manager.LightManager;
+import com.dabloons.wattsapp.model.Light;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.WattsCallback;
+import util.WattsCallbackStatus;
+
+/**
+ * Batches the light lookups made while binding room cards. Every request made during the
+ * same main thread pass is served by a single query, and the lights are cached for rebinds.
+ * Must be used from the main thread.
+ */
+public class RoomLightLoader {
+
+    private final LightManager lightManager = LightManager.getInstance();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Light> cache = new HashMap<>();
+    private final Set<String> pendingIds = new LinkedHashSet<>();
+    private final List<PendingLoad> pendingLoads = new ArrayList<>();
+    private boolean dispatchScheduled = false;
+
+    public void load(List<String> lightIds, WattsCallback<List<Light>> callback) {
+        if(cache.keySet().containsAll(lightIds)) {
+            callback.apply(getCachedLights(lightIds));
+            return;
+        }
+
+        for(String id : lightIds) {
+            if(!cache.containsKey(id))
+                pendingIds.add(id);
+        }
+        pendingLoads.add(new PendingLoad(lightIds, callback));
+
+        if(!dispatchScheduled) {
+            dispatchScheduled = true;
+            mainHandler.post(this::dispatch);
+        }
+    }
+
+    /**
+     * Drop cached lights so the next load reads them again
+     */
+    public void invalidate(List<String> lightIds) {
+        for(String id : lightIds)
+            cache.remove(id);
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    private void dispatch() {
+        dispatchScheduled = false;
+        List<String> ids = new ArrayList<>(pendingIds);
+        List<PendingLoad> loads = new ArrayList<>(pendingLoads);
+        pendingIds.clear();
+        pendingLoads.clear();
+
+        lightManager.getLightsForIds(ids, (lights, status) -> {
+            mainHandler.post(() -> {
+                if(status.success) {
+                    for(Light light : lights)
+                        cache.put(light.getUid(), light);
+
+                    // remember ids that no longer exist so they are not queried on every bind
+                    for(String id : ids) {
+                        if(!cache.containsKey(id))
+                            cache.put(id, null);
+                    }
+                }
+
+                for(PendingLoad load : loads) {
+                    List<Light> ret = getCachedLights(load.lightIds);
+                    if(status.success)
+                        load.callback.apply(ret);
+                    else
+                        load.callback.apply(ret, new WattsCallbackStatus(status.message));
+                }
+            });
+        });
+    }
+
+    private List<Light> getCachedLights(List<String> lightIds) {
+        List<Light> ret = new ArrayList<>();
+        for(String id : lightIds) {
+            Light light = cache.get(id);
+            if(light != null)
+                ret.add(light);
+        }
+        return ret;
+    }
+
+    private static class PendingLoad {
+        private final List<String> lightIds;
+        private final WattsCallback<List<Light>> callback;
+
+        private PendingLoad(List<String> lightIds, WattsCallback<List<Light>> callback) {
+            this.lightIds = lightIds;
+            this.callback = callback;
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import util.UIMessageUtil;
 import util.UIUtil;
@@ -125,20 +126,24 @@ public class ConnectFragment extends Fragment {
                     new AlertDialog.Builder(getActivity())
                             .setMessage("Are you panels in connect mode? (Hold power button down for 5-7 seconds)")
                             .setPositiveButton("Yes", (dialogInterface, i) -> {
+                                List<NanoleafPanelIntegrationAuth> foundPanels = new ArrayList<>();
                                 nanoleafAuthManager.discoverNanoleafPanelsOnNetwork(
-                                        (var, status) -> {
-                                            // On device found callback
-                                            if(status.success)
+                                        (panel, status) -> {
+                                            // On device found callback, show panels as they arrive
+                                            new Handler(Looper.getMainLooper()).post(() -> {
+                                                foundPanels.add(panel);
                                                 updateDevicesFoundCount(++devicesDiscoveredCt);
-                                            else
-                                                Log.e(LOG_TAG, "Issue discovering device: " + status.message);
+                                                setLightsForSelection(new ArrayList<>(foundPanels));
+                                            });
                                         },
                                         (panels, status) -> {
                                             // On finished discovering devices callback
-                                            devicesDiscoveredCt = 0;
-                                            updateDevicesFoundCount(0);
-                                            setLightsForSelection(panels);
-                                            setSelectLightsView();
+                                            new Handler(Looper.getMainLooper()).post(() -> {
+                                                devicesDiscoveredCt = 0;
+                                                updateDevicesFoundCount(0);
+                                                setLightsForSelection(panels);
+                                                setSelectLightsView();
+                                            });
                                         });
                                 launchPopupWindow();
                             })
@@ -229,7 +234,15 @@ public class ConnectFragment extends Fragment {
     private void confirmLights() {
         setLoadingView();
         List<NanoleafPanelIntegrationAuth> lights = discoveredLightsAdapter.getSelectedLights();
-        nanoleafAuthManager.connectToPanels(lights, (numLights, status) -> {
+        AtomicInteger pairedCt = new AtomicInteger(0);
+        nanoleafAuthManager.connectToPanels(lights, (panel, status) -> {
+            // report each panel as it pairs
+            if(!status.success)
+                return;
+            String text = String.format("Paired %d of %d devices...", pairedCt.incrementAndGet(), lights.size());
+            new Handler(Looper.getMainLooper()).post(() ->
+                    ((TextView) loadingView.findViewById(R.id.loading_text)).setText(text));
+        }, (numLights, status) -> {
             if(status.success) {
                 String message;
                 if(numLights > 0)
@@ -249,6 +262,7 @@ public class ConnectFragment extends Fragment {
 
     private void setLightsForSelection(List<NanoleafPanelIntegrationAuth> panels) {
         discoveredLightsAdapter.setLights(panels);
+        discoveredLightsAdapter.notifyDataSetChanged();
     }
 
     private void closePopupWindow() {
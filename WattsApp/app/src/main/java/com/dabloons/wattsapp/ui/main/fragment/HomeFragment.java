@@ -23,6 +23,7 @@ import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.manager.LightManager;
 import com.dabloons.wattsapp.manager.RoomManager;
+import com.dabloons.wattsapp.manager.StartupManager;
 import com.dabloons.wattsapp.manager.UserManager;
 import com.dabloons.wattsapp.model.Light;
 import com.dabloons.wattsapp.model.Room;
@@ -63,6 +64,8 @@ public class HomeFragment extends Fragment implements OnItemClickListener {
     private RoomAdapter roomAdapter;
     private LightItemAdapter mLightItemAdapter;
 
+    private final Runnable lightSyncListener = () -> updateUI(false);
+
     public HomeFragment() {
         // Required empty public constructor
     }
@@ -83,6 +86,15 @@ public class HomeFragment extends Fragment implements OnItemClickListener {
             roomRV.setAdapter(roomAdapter);
             roomAdapter.setClickListener(this);
         });
+
+        // rooms render from Firestore right away, refresh as the background light sync lands
+        StartupManager.getInstance().addLightSyncListener(lightSyncListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        StartupManager.getInstance().removeLightSyncListener(lightSyncListener);
     }
 
     @Override
@@ -114,7 +114,7 @@ public class RoomActivity extends AppCompatActivity {
 
 
         lightManager.getLightsForIds(currentRoom.getLightIds(), (lights, status) -> {
-            lightAdapter = new LightAdapter(WattsApplication.getAppContext(), lights);
+            lightAdapter = new LightAdapter(WattsApplication.getAppContext(), lights, currentRoom.getUid());
             GridLayoutManager gridLayoutManager = new GridLayoutManager(WattsApplication.getAppContext(), 2, GridLayoutManager.HORIZONTAL, false);
 
             lightRV = findViewById(R.id.roomLightRV);
@@ -130,7 +130,19 @@ public class RoomActivity extends AppCompatActivity {
             registerForContextMenu(lightRV);
         });
 
-        sceneManager.getAllScenes(currentRoom.getUid(), (scenes, status) -> {
+        sceneManager.getScenesIncrementally(currentRoom.getUid(), (scenes, status) -> {
+            // so tapping a scene only has to send its requests
+            sceneManager.precompileActivationPlans(currentRoom, scenes);
+
+            if(sceneAdapter != null) {
+                // Fresher results after the cached ones were shown
+                sceneAdapter.scenes.clear();
+                sceneAdapter.scenes.addAll(scenes);
+                UIUtil.toggleViews(scenes.size(), scenePlaceHolderHeader, sceneRV);
+                UIUtil.toggleViews(scenes.size(), scenePlaceHolderBody, sceneRV);
+                updateUI();
+                return;
+            }
 
             sceneAdapter = new SceneAdapter(WattsApplication.getAppContext(), scenes);
             GridLayoutManager gridLayoutManager1 = new GridLayoutManager(WattsApplication.getAppContext(), 2, GridLayoutManager.HORIZONTAL, false);
@@ -280,8 +292,10 @@ public class RoomActivity extends AppCompatActivity {
     public void updateUI()
     {
         new Handler(Looper.getMainLooper()).post(() -> {
-            sceneAdapter.notifyDataSetChanged();
-            lightAdapter.notifyDataSetChanged();
+            if(sceneAdapter != null)
+                sceneAdapter.notifyDataSetChanged();
+            if(lightAdapter != null)
+                lightAdapter.notifyDataSetChanged();
         });
     }
 }
\ No newline at end of file
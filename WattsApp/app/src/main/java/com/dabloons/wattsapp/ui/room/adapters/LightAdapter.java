@@ -47,6 +47,7 @@ public class LightAdapter extends RecyclerView.Adapter<LightAdapter.Viewholder>
 
     private Context context;
     public List<Light> lights;
+    private String roomId;
 
     private AlertDialog currentColorPicker;
 
@@ -56,9 +57,10 @@ public class LightAdapter extends RecyclerView.Adapter<LightAdapter.Viewholder>
 
     private int position;
 
-    public LightAdapter(Context context, List<Light> lights) {
+    public LightAdapter(Context context, List<Light> lights, String roomId) {
         this.context = context;
         this.lights = lights;
+        this.roomId = roomId;
     }
 
     @NonNull
@@ -97,7 +99,7 @@ public class LightAdapter extends RecyclerView.Adapter<LightAdapter.Viewholder>
         holder.lightSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
             if(isChecked) {
 
-                lightManager.turnOnLight(light, (var, status) -> {
+                lightManager.turnOnLight(light, roomId, (var, status) -> {
                     if(!status.success) {
                         Log.e(LOG_TAG, status.message);
 
@@ -109,7 +111,7 @@ public class LightAdapter extends RecyclerView.Adapter<LightAdapter.Viewholder>
                     UIMessageUtil.showShortToastMessage(buttonView.getContext(), "Turned on light: " + light.getName());
                 });
             } else {
-                lightManager.turnOffLight(light, (var, status) -> {
+                lightManager.turnOffLight(light, roomId, (var, status) -> {
                     if(!status.success) {
                         Log.e(LOG_TAG, status.message);
                         UIMessageUtil.showShortToastMessage(buttonView.getContext(), "Failed to turn off light: " + light.getName());
@@ -249,7 +251,7 @@ public class LightAdapter extends RecyclerView.Adapter<LightAdapter.Viewholder>
 
             Light light = lights.get(this.getAbsoluteAdapterPosition());
             LightState lightState = new LightState(true, brightness, hue / HUE_MAX, saturation);
-            LightManager.getInstance().setLightState(light, lightState, (var, status) -> {
+            LightManager.getInstance().setLightState(light, lightState, roomId, (var, status) -> {
                 if(!status.success) {
                     Log.e(LOG_TAG, status.message);
                     UIMessageUtil.showShortToastMessage(WattsApplication.getAppContext(), "Failed to set light state");
@@ -5,6 +5,8 @@ import android.util.Log;
 import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.manager.UserManager;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
@@ -14,43 +16,94 @@ import com.google.firebase.firestore.WriteBatch;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FirestoreUtil {
 
     private static String LOG_TAG = "FirestoreUtil";
     private static final String USER_ID_FIELD = WattsApplication.getResourceString(R.string.field_userId);
 
+    // Maximum number of values Firestore accepts in a single whereIn clause
+    public static final int WHERE_IN_LIMIT = 10;
+
+    // Maximum number of operations in a single WriteBatch
+    public static final int BATCH_WRITE_LIMIT = 500;
+
+    /**
+     * Delete every document of the current user in the collection. Deletes are split into
+     * batches within Firestore's write limit and committed concurrently. Only the user's
+     * remaining documents are queried, so calling this again after a partial failure resumes
+     * the deletion.
+     * @param collection Collection to delete from
+     * @param callback Called once every batch has finished
+     */
     public static void deleteDocumentsForUser(CollectionReference collection, WattsCallback<Void> callback) {
         FirebaseUser user = UserManager.getInstance().getCurrentUser();
         if(user == null) return;
 
         getUserDocIds(collection, (docIds, status) -> {
-            WriteBatch batch = FirebaseFirestore.getInstance().batch();
-            for(String id : docIds) {
-                batch.delete(collection.document(id));
+            if(!status.success) {
+                callback.apply(null, new WattsCallbackStatus(status.message));
+                return;
+            }
+
+            if(docIds.size() == 0) {
+                callback.apply(null);
+                return;
+            }
+
+            int total = docIds.size();
+            AtomicInteger deleted = new AtomicInteger(0);
+            List<Task<Void>> commits = new ArrayList<>();
+            for(List<String> ids : chunk(docIds, BATCH_WRITE_LIMIT)) {
+                WriteBatch batch = FirebaseFirestore.getInstance().batch();
+                for(String id : ids) {
+                    batch.delete(collection.document(id));
+                }
+
+                commits.add(batch.commit().addOnSuccessListener(nil -> {
+                    int done = deleted.addAndGet(ids.size());
+                    Log.d(LOG_TAG, String.format("Deleted %d of %d documents from %s", done, total, collection.getPath()));
+                }));
             }
 
-            batch.commit()
-                    .addOnCompleteListener(task ->{
-                        callback.apply(null);
-                    })
-                    .addOnFailureListener(task -> {
-                        callback.apply(null, new WattsCallbackStatus(task.getMessage()));
-                    });
+            Tasks.whenAll(commits).addOnCompleteListener(task -> {
+                if(task.isSuccessful())
+                    callback.apply(null);
+                else
+                    callback.apply(null, new WattsCallbackStatus(String.format(
+                            "Deleted %d of %d documents from %s, delete again to resume",
+                            deleted.get(), total, collection.getPath())));
+            });
         });
     }
 
+    /**
+     * Split a list into consecutive chunks of at most size elements
+     * @param list List to split
+     * @param size Maximum chunk size
+     */
+    public static <T> List<List<T>> chunk(List<T> list, int size) {
+        List<List<T>> ret = new ArrayList<>();
+        for(int i = 0; i < list.size(); i += size) {
+            ret.add(new ArrayList<>(list.subList(i, Math.min(i + size, list.size()))));
+        }
+        return ret;
+    }
+
     private static void getUserDocIds(CollectionReference collection, WattsCallback<List<String>> callback) {
         String userId = UserManager.getInstance().getCurrentUser().getUid();
-        collection.get().addOnCompleteListener(task -> {
-            if(!task.isComplete())
-                Log.e(LOG_TAG, "Failed to get lights collection");
+        collection.whereEqualTo(USER_ID_FIELD, userId).get().addOnCompleteListener(task -> {
+            if(!task.isSuccessful()) {
+                String message = "Failed to get documents of " + collection.getPath();
+                Log.e(LOG_TAG, message);
+                callback.apply(null, new WattsCallbackStatus(message));
+                return;
+            }
 
             List<String> ids = new ArrayList<>();
             for (QueryDocumentSnapshot document : task.getResult()) {
-                boolean userEqual = document.get(USER_ID_FIELD).toString().equals(userId);
-                if(userEqual)
-                    ids.add(document.get("uid").toString());
+                ids.add(document.getId());
             }
 
             callback.apply(ids);
@@ -0,0 +1,89 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class FutureUtil {
+
+    private static final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FutureUtil-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @FunctionalInterface
+    public interface CallbackOperation<T> {
+        void run(WattsCallback<T> callback);
+    }
+
+    /**
+     * Adapt a callback based operation to a future that completes with its value,
+     * or exceptionally with the status message if the operation reports a failure
+     * @param operation Operation to start, given the callback it must invoke
+     */
+    public static <T> CompletableFuture<T> fromCallback(CallbackOperation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            operation.run((var, status) -> {
+                if(status.success)
+                    future.complete(var);
+                else
+                    future.completeExceptionally(new Exception(status.message));
+            });
+        } catch(Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Fail the future with a TimeoutException if it has not completed in time
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        ScheduledFuture<?> timeoutTask = timeoutScheduler.schedule(() -> {
+            future.completeExceptionally(new TimeoutException("Timed out after " + unit.toMillis(timeout) + "ms"));
+        }, timeout, unit);
+        future.whenComplete((result, throwable) -> timeoutTask.cancel(false));
+        return future;
+    }
+
+    /**
+     * Complete with every result in order once all futures succeed, or fail with the first failure
+     */
+    public static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+        CompletableFuture<?>[] array = futures.toArray(new CompletableFuture<?>[0]);
+        return CompletableFuture.allOf(array).thenApply(nil -> {
+            List<T> ret = new ArrayList<>();
+            for(CompletableFuture<T> future : futures)
+                ret.add(future.join());
+            return ret;
+        });
+    }
+
+    /**
+     * Report the outcome of the future to a WattsCallback
+     */
+    public static <T> void toCallback(CompletableFuture<T> future, WattsCallback<T> callback) {
+        future.whenComplete((result, throwable) -> {
+            if(throwable == null)
+                callback.apply(result);
+            else
+                callback.apply(null, new WattsCallbackStatus(getMessage(throwable)));
+        });
+    }
+
+    public static String getMessage(Throwable throwable) {
+        Throwable cause = throwable;
+        while((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null)
+            cause = cause.getCause();
+        return cause.getMessage();
+    }
+}
@@ -0,0 +1,70 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Limits how many asynchronous requests run against the same host at once. Requests over the
+ * limit are queued and started in order as earlier requests to that host finish.
+ */
+public class HostConcurrencyLimiter {
+
+    @FunctionalInterface
+    public interface Request {
+        /**
+         * Start the request, calling onDone exactly once when it finishes
+         */
+        void start(Runnable onDone);
+    }
+
+    private final int maxRequestsPerHost;
+
+    // guarded by this
+    private final Map<String, Integer> activeRequests = new HashMap<>();
+    private final Map<String, Queue<Request>> queuedRequests = new HashMap<>();
+
+    public HostConcurrencyLimiter(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    public void submit(String host, Request request) {
+        synchronized(this) {
+            int active = activeRequests.getOrDefault(host, 0);
+            if(active >= maxRequestsPerHost) {
+                queuedRequests.computeIfAbsent(host, key -> new ArrayDeque<>()).add(request);
+                return;
+            }
+            activeRequests.put(host, active + 1);
+        }
+
+        start(host, request);
+    }
+
+    private void start(String host, Request request) {
+        request.start(() -> onRequestDone(host));
+    }
+
+    private void onRequestDone(String host) {
+        Request next;
+        synchronized(this) {
+            Queue<Request> queue = queuedRequests.get(host);
+            next = queue == null ? null : queue.poll();
+            if(queue != null && queue.isEmpty())
+                queuedRequests.remove(host);
+
+            // the finished request's slot passes straight to the next queued one
+            if(next == null) {
+                int active = activeRequests.get(host) - 1;
+                if(active == 0)
+                    activeRequests.remove(host);
+                else
+                    activeRequests.put(host, active);
+            }
+        }
+
+        if(next != null)
+            start(host, next);
+    }
+}
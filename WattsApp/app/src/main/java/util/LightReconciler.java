@@ -0,0 +1,80 @@
+package util;
+
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightState;
+import com.dabloons.wattsapp.model.LightSyncDiff;
+import com.dabloons.wattsapp.model.integration.IntegrationType;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+public class LightReconciler {
+
+    /**
+     * Compare the lights reported by an integration against the stored lights in linear time.
+     * Lights are matched on integration type and integration id. Matched lights keep their
+     * stored uid so rooms that reference them stay valid.
+     * @param existingLights Lights currently stored
+     * @param incomingLights Lights reported by the integration
+     * @param retainedIntegrationIds Integration ids that are known but not reported, e.g.
+     *                               unreachable lights. These are left untouched instead of deleted
+     */
+    public static LightSyncDiff reconcile(Collection<Light> existingLights, Collection<Light> incomingLights,
+                                          Set<String> retainedIntegrationIds) {
+        LightSyncDiff diff = new LightSyncDiff();
+
+        Map<String, Light> existingByKey = new HashMap<>();
+        for(Light existing : existingLights) {
+            // a second document for the same light is a stale duplicate
+            if(existingByKey.putIfAbsent(getKey(existing), existing) != null)
+                diff.getDeleted().add(existing);
+        }
+
+        for(Light incoming : incomingLights) {
+            Light existing = existingByKey.remove(getKey(incoming));
+            if(existing == null) {
+                diff.getInserted().add(incoming);
+            }
+            else if(isSame(existing, incoming)) {
+                diff.getUnchanged().add(existing);
+            }
+            else {
+                existing.setName(incoming.getName());
+                existing.setLightState(incoming.getLightState());
+                diff.getUpdated().add(existing);
+            }
+        }
+
+        for(Light existing : existingByKey.values()) {
+            if(retainedIntegrationIds.contains(existing.getIntegrationId()))
+                diff.getUnchanged().add(existing);
+            else
+                diff.getDeleted().add(existing);
+        }
+
+        return diff;
+    }
+
+    private static String getKey(Light light) {
+        IntegrationType type = light.getIntegrationType();
+        return (type == null ? "" : type.name()) + ":" + light.getIntegrationId();
+    }
+
+    private static boolean isSame(Light existing, Light incoming) {
+        if(!Objects.equals(existing.getName(), incoming.getName()))
+            return false;
+
+        LightState a = existing.getLightState();
+        LightState b = incoming.getLightState();
+        if(a == null || b == null)
+            return a == b;
+
+        return a.isOn() == b.isOn()
+                && Float.compare(a.getBrightness(), b.getBrightness()) == 0
+                && Objects.equals(a.getHue(), b.getHue())
+                && Objects.equals(a.getSaturation(), b.getSaturation());
+    }
+}
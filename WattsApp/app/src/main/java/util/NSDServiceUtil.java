@@ -3,48 +3,70 @@ package util;
 import android.content.Context;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.dabloons.wattsapp.R;
 import com.dabloons.wattsapp.WattsApplication;
 import com.dabloons.wattsapp.model.NetworkService;
 
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers and resolves mDNS services. Found services are resolved as they arrive, several at
+ * a time, each with its own resolve listener. Callers waiting for all resolves to finish are
+ * called back as soon as the last one does.
+ */
 public class NSDServiceUtil {
 
     private final String LOG_TAG = "NSDServiceUtil";
 
     private static volatile NSDServiceUtil instance;
 
+    private final int MAX_CONCURRENT_RESOLVES = Integer.parseInt(WattsApplication.getResourceString(R.string.nsd_max_concurrent_resolves));
+    private final int MAX_RESOLVE_ATTEMPTS = Integer.parseInt(WattsApplication.getResourceString(R.string.nsd_max_resolve_attempts));
+    private final long RESOLVE_RETRY_BACKOFF_MS = Long.parseLong(WattsApplication.getResourceString(R.string.nsd_resolve_retry_backoff_ms));
+
     private NsdManager nsdManager;
     private NsdManager.DiscoveryListener nsdListener;
-    private NsdManager.ResolveListener nsdResolveListener;
-
-    private AtomicBoolean resolveListenerBusy;
 
     private ConcurrentMap<String, WattsCallback<NetworkService>> onDiscoveryCallbacks;
-    private ConcurrentLinkedQueue<NsdServiceInfo> pendingNsdServices;
     private ConcurrentLinkedQueue<NsdServiceInfo> resolvedNsdServices;
 
+    // guarded by this
+    private final Deque<PendingResolve> pendingResolves = new ArrayDeque<>();
+    private final Set<String> activeResolves = new HashSet<>();
+    // rejected by the platform's resolve cap, retried once a slot actually frees up
+    private final List<PendingResolve> deferredResolves = new ArrayList<>();
+    private int maxConcurrentResolves;
+    private final List<WattsCallback<Void>> onAllResolvedCallbacks = new ArrayList<>();
+
+    // service name to ms from being found to being resolved
+    private final Map<String, Long> resolveLatencies = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+
     private NSDServiceUtil() {
         nsdManager = (NsdManager) WattsApplication.getAppContext().getSystemService(Context.NSD_SERVICE);
+        maxConcurrentResolves = MAX_CONCURRENT_RESOLVES;
 
-        resolveListenerBusy = new AtomicBoolean(false);
         onDiscoveryCallbacks = new ConcurrentHashMap<>();
-        pendingNsdServices = new ConcurrentLinkedQueue<>();
         resolvedNsdServices = new ConcurrentLinkedQueue<>();
 
-        nsdResolveListener = new NSDResolveListener();
-
         initializeDiscoveryListener();
     }
 
@@ -58,13 +80,8 @@ public class NSDServiceUtil {
             @Override
             public void onServiceFound(NsdServiceInfo serviceInfo) {
                 Log.d(LOG_TAG, "Found service: " + serviceInfo.getServiceType());
-                if(onDiscoveryCallbacks.containsKey(serviceInfo.getServiceType())) {
-
-                    if(resolveListenerBusy.compareAndSet(false, true))
-                        nsdManager.resolveService(serviceInfo, nsdResolveListener);
-                    else
-                        pendingNsdServices.add(serviceInfo);
-                }
+                if(onDiscoveryCallbacks.containsKey(serviceInfo.getServiceType()))
+                    enqueueResolve(serviceInfo);
             }
 
             @Override
@@ -92,20 +109,28 @@ public class NSDServiceUtil {
             @Override
             public void onServiceLost(NsdServiceInfo serviceInfo) {
                 Log.w(LOG_TAG, "Lost service " + serviceInfo.getServiceType());
-                Iterator<NsdServiceInfo> iterator = pendingNsdServices.iterator();
-                while (iterator.hasNext()) {
-                    if (iterator.next().getServiceName() == serviceInfo.getServiceName())
-                        iterator.remove();
-                }
-
-                // If the lost service was in the list of resolved services, remove it
-                synchronized(resolvedNsdServices) {
-                    iterator = resolvedNsdServices.iterator();
+                String name = serviceInfo.getServiceName();
+                synchronized(NSDServiceUtil.this) {
+                    Iterator<PendingResolve> iterator = pendingResolves.iterator();
                     while (iterator.hasNext()) {
-                        if (iterator.next().getServiceName() == serviceInfo.getServiceName())
+                        if (iterator.next().serviceInfo.getServiceName().equals(name))
                             iterator.remove();
                     }
+                    iterator = deferredResolves.iterator();
+                    while (iterator.hasNext()) {
+                        if (iterator.next().serviceInfo.getServiceName().equals(name))
+                            iterator.remove();
+                    }
+                }
+
+                // If the lost service was in the list of resolved services, remove it
+                Iterator<NsdServiceInfo> iterator = resolvedNsdServices.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getServiceName().equals(name))
+                        iterator.remove();
                 }
+
+                notifyIfAllResolved();
             }
         };
     }
@@ -130,22 +155,25 @@ public class NSDServiceUtil {
         onDiscoveryCallbacks.remove(serviceType);
     }
 
+    /**
+     * Call back once no services are waiting on or in the middle of being resolved
+     */
     public void waitForAllServicesToResolve(WattsCallback<Void> callback) {
-        if(pendingNsdServices.size() == 0) {
-            callback.apply(null);
-            return;
+        synchronized(this) {
+            if(!allResolved()) {
+                onAllResolvedCallbacks.add(callback);
+                return;
+            }
         }
 
-        resolveNextInQueue();
+        callback.apply(null);
+    }
 
-        try {
-            Thread.sleep(500);
-            waitForAllServicesToResolve(callback);
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, e.getMessage());
-            callback.apply(null, new WattsCallbackStatus(e.getMessage()));
-            return;
-        }
+    /**
+     * Time in ms from each service being found to it being resolved
+     */
+    public Map<String, Long> getResolveLatencies() {
+        return new HashMap<>(resolveLatencies);
     }
 
     public void safeEndNetworkDiscovery(WattsCallback<Boolean> callback) {
@@ -167,6 +195,12 @@ public class NSDServiceUtil {
 
     public void forceEndNetworkDiscovery() {
         clearDiscoveryCallbacks();
+        synchronized(this) {
+            pendingResolves.clear();
+            deferredResolves.clear();
+        }
+        notifyIfAllResolved();
+
         if(nsdListener == null)
             return;
 
@@ -174,12 +208,100 @@ public class NSDServiceUtil {
         this.nsdListener = null;
     }
 
-    private void resolveNextInQueue() {
-        NsdServiceInfo next = pendingNsdServices.poll();
-        if(next != null)
-            nsdManager.resolveService(next, nsdResolveListener);
-        else
-            resolveListenerBusy.set(false);
+    private void enqueueResolve(NsdServiceInfo serviceInfo) {
+        String name = serviceInfo.getServiceName();
+        synchronized(this) {
+            // services are often reported more than once while discovery runs
+            if(activeResolves.contains(name))
+                return;
+            for(PendingResolve pending : pendingResolves) {
+                if(pending.serviceInfo.getServiceName().equals(name))
+                    return;
+            }
+            for(PendingResolve deferred : deferredResolves) {
+                if(deferred.serviceInfo.getServiceName().equals(name))
+                    return;
+            }
+            pendingResolves.add(new PendingResolve(serviceInfo));
+        }
+
+        startResolves();
+    }
+
+    private void startResolves() {
+        while(true) {
+            PendingResolve next;
+            synchronized(this) {
+                if(activeResolves.size() >= maxConcurrentResolves || pendingResolves.isEmpty())
+                    return;
+                next = pendingResolves.poll();
+                activeResolves.add(next.serviceInfo.getServiceName());
+            }
+
+            next.attempts++;
+            next.resolveStartTime = SystemClock.elapsedRealtime();
+            // a listener can only be used by one resolve at a time
+            nsdManager.resolveService(next.serviceInfo, new NSDResolveListener(next));
+        }
+    }
+
+    private void onResolveDone(PendingResolve resolve, boolean rejectedByCap) {
+        boolean scheduleRetry = false;
+        synchronized(this) {
+            activeResolves.remove(resolve.serviceInfo.getServiceName());
+
+            if(!rejectedByCap) {
+                // a slot really freed up, services waiting on one can go again
+                pendingResolves.addAll(deferredResolves);
+                deferredResolves.clear();
+            }
+            else if(resolve.attempts >= MAX_RESOLVE_ATTEMPTS) {
+                Log.w(LOG_TAG, "Giving up resolving " + resolve.serviceInfo.getServiceName() + " after " + resolve.attempts + " attempts");
+            }
+            else {
+                // the platform allows fewer resolves than we ran, don't go past what it accepted
+                maxConcurrentResolves = Math.max(1, activeResolves.size());
+                deferredResolves.add(resolve);
+            }
+
+            // with none of ours running, nothing will free a slot for the deferred services,
+            // so back off and try them again, even when this resolve has just given up
+            scheduleRetry = activeResolves.isEmpty() && !deferredResolves.isEmpty();
+
+            if(allResolved())
+                maxConcurrentResolves = MAX_CONCURRENT_RESOLVES;
+        }
+
+        if(scheduleRetry) {
+            retryExecutor.schedule(() -> {
+                synchronized(NSDServiceUtil.this) {
+                    pendingResolves.addAll(deferredResolves);
+                    deferredResolves.clear();
+                }
+                startResolves();
+            }, RESOLVE_RETRY_BACKOFF_MS * resolve.attempts, TimeUnit.MILLISECONDS);
+        }
+
+        startResolves();
+        notifyIfAllResolved();
+    }
+
+    private void notifyIfAllResolved() {
+        List<WattsCallback<Void>> callbacks;
+        synchronized(this) {
+            if(!allResolved() || onAllResolvedCallbacks.isEmpty())
+                return;
+            callbacks = new ArrayList<>(onAllResolvedCallbacks);
+            onAllResolvedCallbacks.clear();
+        }
+
+        for(WattsCallback<Void> callback : callbacks)
+            callback.apply(null);
+    }
+
+    // guarded by this
+    private boolean allResolved() {
+        return pendingResolves.isEmpty() && activeResolves.isEmpty() && deferredResolves.isEmpty();
     }
 
     public static NSDServiceUtil getInstance() {
@@ -195,16 +317,40 @@ public class NSDServiceUtil {
         }
     }
 
+    private static class PendingResolve {
+        final NsdServiceInfo serviceInfo;
+        final long foundTime = SystemClock.elapsedRealtime();
+        long resolveStartTime;
+        int attempts;
+
+        PendingResolve(NsdServiceInfo serviceInfo) {
+            this.serviceInfo = serviceInfo;
+        }
+    }
+
     class NSDResolveListener implements NsdManager.ResolveListener {
+
+        private final PendingResolve resolve;
+
+        NSDResolveListener(PendingResolve resolve) {
+            this.resolve = resolve;
+        }
+
         @Override
         public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
             Log.e(LOG_TAG, "Failed to resolve service: " + serviceInfo.getServiceType() + "; error=" + errorCode);
-            resolveNextInQueue();
+
+            boolean rejectedByCap = errorCode == NsdManager.FAILURE_MAX_LIMIT || errorCode == NsdManager.FAILURE_ALREADY_ACTIVE;
+            onResolveDone(resolve, rejectedByCap);
         }
 
         @Override
         public void onServiceResolved(NsdServiceInfo serviceInfo) {
-            Log.d(LOG_TAG, "Resolve Succeeded. " + serviceInfo);
+            long now = SystemClock.elapsedRealtime();
+            long latency = now - resolve.foundTime;
+            resolveLatencies.put(serviceInfo.getServiceName(), latency);
+            Log.d(LOG_TAG, String.format("Resolve Succeeded in %dms (%dms queued). %s",
+                    latency, resolve.resolveStartTime - resolve.foundTime, serviceInfo));
 
             resolvedNsdServices.add(serviceInfo);
 
@@ -222,7 +368,7 @@ public class NSDServiceUtil {
                 callback.apply(retService);
             }
 
-            resolveNextInQueue();
+            onResolveDone(resolve, false);
         }
-    };
+    }
 }
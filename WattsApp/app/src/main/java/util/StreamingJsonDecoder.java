@@ -0,0 +1,336 @@
+package util;
+
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightState;
+import com.dabloons.wattsapp.model.integration.IntegrationScene;
+import com.dabloons.wattsapp.model.integration.IntegrationType;
+import com.dabloons.wattsapp.model.integration.PhillipsHueBridgeSnapshot;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSource;
+
+/**
+ * Decodes bridge responses straight from the response body into models, without building the
+ * body as a String or a Gson tree first. Unknown fields are skipped, and a missing hue or
+ * saturation is decoded as null.
+ */
+public class StreamingJsonDecoder {
+
+    /**
+     * Decode the response of GET /api/{username} from a Phillips Hue bridge
+     */
+    public static PhillipsHueBridgeSnapshot decodePhillipsHueConfiguration(BufferedSource source, String userId,
+                                                                           int hueMax, int saturationMax, int brightnessMax) throws IOException {
+        PhillipsHueBridgeSnapshot snapshot = new PhillipsHueBridgeSnapshot();
+        try(JsonReader reader = createReader(source)) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch(reader.nextName()) {
+                    case "lights":
+                        readPhillipsHueLights(reader, snapshot, userId, hueMax, saturationMax, brightnessMax);
+                        break;
+                    case "groups":
+                        readPhillipsHueGroups(reader, snapshot);
+                        break;
+                    case "scenes":
+                        readPhillipsHueScenes(reader, snapshot, userId);
+                        break;
+                    case "config":
+                        readPhillipsHueConfig(reader, snapshot);
+                        break;
+                    case "capabilities":
+                        JsonElement capabilities = JsonParser.parseReader(reader);
+                        if(capabilities.isJsonObject())
+                            snapshot.setCapabilities(capabilities.getAsJsonObject());
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Decode the response of GET /api/v1/{token}/state from a Nanoleaf panel
+     */
+    public static LightState decodeNanoleafLightState(BufferedSource source, int hueMax,
+                                                      int saturationMax, int brightnessMax) throws IOException {
+        boolean on = false;
+        Float hue = null;
+        Float saturation = null;
+        float brightness = 0;
+
+        try(JsonReader reader = createReader(source)) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch(reader.nextName()) {
+                    case "on":
+                        on = readNanoleafValue(reader) != 0;
+                        break;
+                    case "hue":
+                        hue = readNanoleafValue(reader);
+                        break;
+                    case "sat":
+                        saturation = readNanoleafValue(reader);
+                        break;
+                    case "brightness":
+                        brightness = readNanoleafValue(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        return new LightState(on, brightness / brightnessMax, scale(hue, hueMax), scale(saturation, saturationMax));
+    }
+
+    /**
+     * Decode a top level array of strings, e.g. a Nanoleaf effects list
+     */
+    public static List<String> decodeStringArray(BufferedSource source) throws IOException {
+        try(JsonReader reader = createReader(source)) {
+            return readStrings(reader);
+        }
+    }
+
+    /**
+     * Find the first error in the response to a Phillips Hue command. The bridge reports failures
+     * such as an unknown scene or group as entries of a 200 response, not as an error status.
+     * @return The error's description, or null if no entry is an error
+     */
+    public static String decodePhillipsHueError(BufferedSource source) throws IOException {
+        try(JsonReader reader = createReader(source)) {
+            if(reader.peek() != JsonToken.BEGIN_ARRAY)
+                return null;
+
+            reader.beginArray();
+            while(reader.hasNext()) {
+                if(reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    if(reader.nextName().equals("error"))
+                        return readPhillipsHueErrorDescription(reader);
+                    reader.skipValue();
+                }
+                reader.endObject();
+            }
+            return null;
+        }
+    }
+
+    private static String readPhillipsHueErrorDescription(JsonReader reader) throws IOException {
+        String description = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            if(reader.nextName().equals("description"))
+                description = reader.nextString();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return description == null ? "Unknown phillips hue error" : description;
+    }
+
+    private static JsonReader createReader(BufferedSource source) {
+        return new JsonReader(new InputStreamReader(source.inputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void readPhillipsHueLights(JsonReader reader, PhillipsHueBridgeSnapshot snapshot, String userId,
+                                              int hueMax, int saturationMax, int brightnessMax) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String integrationId = reader.nextName();
+            String name = null;
+            boolean reachable = false;
+            boolean on = false;
+            float brightness = 0;
+            // lights without color support have no hue or saturation
+            Float hue = null;
+            Float saturation = null;
+
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch(reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "state":
+                        reader.beginObject();
+                        while(reader.hasNext()) {
+                            switch(reader.nextName()) {
+                                case "reachable":
+                                    reachable = reader.nextBoolean();
+                                    break;
+                                case "on":
+                                    on = reader.nextBoolean();
+                                    break;
+                                case "bri":
+                                    brightness = (float) reader.nextDouble();
+                                    break;
+                                case "hue":
+                                    hue = (float) reader.nextDouble();
+                                    break;
+                                case "sat":
+                                    saturation = (float) reader.nextDouble();
+                                    break;
+                                default:
+                                    reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if(!reachable) {
+                snapshot.getUnreachableLightIds().add(integrationId);
+                continue;
+            }
+
+            LightState state = new LightState(on, brightness / brightnessMax, scale(hue, hueMax), scale(saturation, saturationMax));
+            snapshot.getLights().add(new Light(userId, name, integrationId, IntegrationType.PHILLIPS_HUE, state));
+        }
+        reader.endObject();
+    }
+
+    private static void readPhillipsHueGroups(JsonReader reader, PhillipsHueBridgeSnapshot snapshot) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String integrationId = reader.nextName();
+            String name = null;
+            List<String> lightIds = new ArrayList<>();
+            boolean anyOn = false;
+            boolean allOn = false;
+
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch(reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "lights":
+                        lightIds = readStrings(reader);
+                        break;
+                    case "state":
+                        reader.beginObject();
+                        while(reader.hasNext()) {
+                            switch(reader.nextName()) {
+                                case "any_on":
+                                    anyOn = reader.nextBoolean();
+                                    break;
+                                case "all_on":
+                                    allOn = reader.nextBoolean();
+                                    break;
+                                default:
+                                    reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            snapshot.getGroups().add(new PhillipsHueBridgeSnapshot.Group(integrationId, name, lightIds, anyOn, allOn));
+        }
+        reader.endObject();
+    }
+
+    private static void readPhillipsHueScenes(JsonReader reader, PhillipsHueBridgeSnapshot snapshot, String userId) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String integrationId = reader.nextName();
+            String name = null;
+            List<String> lightIds = new ArrayList<>();
+
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch(reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "lights":
+                        lightIds = readStrings(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            snapshot.getScenes().add(new IntegrationScene(userId, IntegrationType.PHILLIPS_HUE, name, integrationId, lightIds, null));
+        }
+        reader.endObject();
+    }
+
+    private static void readPhillipsHueConfig(JsonReader reader, PhillipsHueBridgeSnapshot snapshot) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "name":
+                    snapshot.setBridgeName(reader.nextString());
+                    break;
+                case "apiversion":
+                    snapshot.setApiVersion(reader.nextString());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    // Nanoleaf wraps each state value in an object, e.g. "hue": {"value": 120, "max": 360, "min": 0}
+    private static float readNanoleafValue(JsonReader reader) throws IOException {
+        float value = 0;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            if(!reader.nextName().equals("value")) {
+                reader.skipValue();
+                continue;
+            }
+
+            if(reader.peek() == JsonToken.BOOLEAN)
+                value = reader.nextBoolean() ? 1 : 0;
+            else
+                value = (float) reader.nextDouble();
+        }
+        reader.endObject();
+        return value;
+    }
+
+    private static Float scale(Float value, int max) {
+        return value == null ? null : value / max;
+    }
+
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        List<String> ret = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext())
+            ret.add(reader.nextString());
+        reader.endArray();
+        return ret;
+    }
+}
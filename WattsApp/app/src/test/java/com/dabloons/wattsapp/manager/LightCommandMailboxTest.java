@@ -0,0 +1,141 @@
+package com.dabloons.wattsapp.manager;
+
+import com.dabloons.wattsapp.model.Light;
+import com.dabloons.wattsapp.model.LightState;
+import com.dabloons.wattsapp.model.integration.IntegrationType;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import util.WattsCallback;
+import util.WattsCallbackStatus;
+
+import static org.junit.Assert.*;
+
+public class LightCommandMailboxTest {
+
+    private static final long TIMEOUT_MS = 100;
+
+    @Test
+    public void latestStateWinsWhileRequestInFlight() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        LightCommandMailbox mailbox = new LightCommandMailbox(sender, TIMEOUT_MS * 50);
+        Light light = createLight();
+
+        ResultLatch first = new ResultLatch();
+        ResultLatch second = new ResultLatch();
+        ResultLatch third = new ResultLatch();
+        mailbox.submit(light, new LightState(true, 0.1f), "room", first);
+        mailbox.submit(light, new LightState(true, 0.2f), "room", second);
+        mailbox.submit(light, new LightState(true, 0.3f), "room", third);
+
+        assertEquals(1, sender.sends.size());
+        assertEquals(1, mailbox.getPendingCount());
+
+        sender.sends.get(0).callback.apply(null, new WattsCallbackStatus(true));
+        assertTrue(first.await().success);
+
+        // the middle state was replaced, only the newest is sent
+        assertEquals(2, sender.sends.size());
+        assertEquals(0.3f, sender.sends.get(1).state.getBrightness(), 0.001f);
+
+        sender.sends.get(1).callback.apply(null, new WattsCallbackStatus("failed"));
+        assertFalse(second.await().success);
+        assertFalse(third.await().success);
+        assertEquals(0, mailbox.getPendingCount());
+    }
+
+    @Test
+    public void timedOutRequestIsCancelledBeforeNextIsSent() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        LightCommandMailbox mailbox = new LightCommandMailbox(sender, TIMEOUT_MS);
+        Light light = createLight();
+
+        ResultLatch first = new ResultLatch();
+        ResultLatch second = new ResultLatch();
+        mailbox.submit(light, new LightState(true, 0.1f), "room", first);
+        mailbox.submit(light, new LightState(false, 0.1f), "room", second);
+
+        assertFalse(first.await().success);
+        assertEquals(2, sender.sends.size());
+        assertTrue(sender.sends.get(0).cancelled);
+        assertTrue(sender.sends.get(0).cancelledBeforeNextSend);
+
+        // a response to the timed out request doesn't finish the one sent after it
+        sender.sends.get(0).callback.apply(null, new WattsCallbackStatus(true));
+        assertEquals(1, second.latch.getCount());
+
+        sender.sends.get(1).callback.apply(null, new WattsCallbackStatus(true));
+        assertTrue(second.await().success);
+        assertFalse(sender.sends.get(1).cancelled);
+    }
+
+    @Test
+    public void senderThatThrowsFailsTheCommand() throws InterruptedException {
+        LightCommandMailbox mailbox = new LightCommandMailbox((light, state, roomId, callback) -> {
+            throw new IllegalStateException("no auth");
+        }, TIMEOUT_MS);
+
+        ResultLatch result = new ResultLatch();
+        mailbox.submit(createLight(), new LightState(true, 1f), "room", result);
+
+        WattsCallbackStatus status = result.await();
+        assertFalse(status.success);
+        assertEquals("no auth", status.message);
+    }
+
+    private Light createLight() {
+        return new Light("user", "Lamp", "1", IntegrationType.PHILLIPS_HUE, new LightState(false, 0f));
+    }
+
+    private static class Send {
+        final LightState state;
+        final WattsCallback<Void> callback;
+        volatile boolean cancelled = false;
+        volatile boolean cancelledBeforeNextSend = false;
+
+        Send(LightState state, WattsCallback<Void> callback) {
+            this.state = state;
+            this.callback = callback;
+        }
+    }
+
+    private static class RecordingSender implements LightCommandMailbox.LightCommandSender {
+        final List<Send> sends = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Runnable send(Light light, LightState state, String roomId, WattsCallback<Void> callback) {
+            synchronized(sends) {
+                for(Send previous : sends) {
+                    if(previous.cancelled)
+                        previous.cancelledBeforeNextSend = true;
+                }
+            }
+
+            Send send = new Send(state, callback);
+            sends.add(send);
+            return () -> send.cancelled = true;
+        }
+    }
+
+    private static class ResultLatch implements WattsCallback<Void> {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile WattsCallbackStatus status;
+
+        @Override
+        public void apply(Void var, WattsCallbackStatus status) {
+            this.status = status;
+            latch.countDown();
+        }
+
+        WattsCallbackStatus await() throws InterruptedException {
+            assertTrue("command did not finish", latch.await(TIMEOUT_MS * 20, TimeUnit.MILLISECONDS));
+            return status;
+        }
+    }
+}